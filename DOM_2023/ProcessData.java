@@ -1,13 +1,22 @@
 ///usr/bin/env jbang "$0" "$@" ; exit $?
 //DEPS net.lingala.zip4j:zip4j:2.11.5 
+//SOURCES ../LiDAR_2023/Manifest.java
+//SOURCES ../LiDAR_2023/Raster.java
+//SOURCES ../LiDAR_2023/GeoTiff.java
+//SOURCES ../LiDAR_2023/Terrain.java
+//SOURCES ../LiDAR_2023/ResourceBudget.java
+//SOURCES ../LiDAR_2023/Metrics.java
+//SOURCES ../LiDAR_2023/WorkerPool.java
+//SOURCES ../LiDAR_2023/Halo.java
+//SOURCES ../LiDAR_2023/TileGrid.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
 
 import static java.lang.System.*;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.Channels;
@@ -16,9 +25,13 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -41,71 +54,143 @@ public class ProcessData {
     static final String DTM_SHADED_RELIEF_DIRECTORY = System.getProperty("user.home")+"/tmp/dtm_shaded_relief";
     static final String NDSM_BUILDINGS_DIRECTORY = System.getProperty("user.home")+"/tmp/ndsm_buildings";
     static final String NDSM_VEGETATION_DIRECTORY = System.getProperty("user.home")+"/tmp/ndsm_vegetation";
+    // Per tile and stage completion record. A restarted run skips what is already done.
+    static final String MANIFEST_FILE = System.getProperty("manifest", System.getProperty("user.home")+"/tmp/manifest_dom.tsv");
+    static final List<String> STAGES = List.of("download", "hillshade");
+    // Per tile and stage timings (JSON lines) and totals per stage for the node_exporter textfile collector.
+    static final String METRICS_FILE = System.getProperty("metrics", System.getProperty("user.home")+"/tmp/metrics_dom.jsonl");
+    static final String PROMETHEUS_FILE = System.getProperty("metrics.prometheus", System.getProperty("user.home")+"/tmp/metrics_dom.prom");
+    // Hillshade in the JVM. -Dterrain.native=false runs gdaldem instead.
+    static final boolean NATIVE_TERRAIN = Boolean.parseBoolean(System.getProperty("terrain.native", "true"));
+    // gdaldem is killed after this time.
+    static final Duration EXEC_TIMEOUT = Duration.ofSeconds(Long.getLong("exec.timeout.s", 3600));
+    // Hillshade in the JVM holds the elevation and the hillshade as floats plus the encoded output.
+    static final int BYTES_PER_PIXEL = 12;
+    // Only the tiles overlapping -Dbbox=minE,minN,maxE,maxN or -Dpolygon=<WKT or file> (LV95 metres),
+    // or -Dchanged=<ids or URLs, or a file>, which are downloaded and shaded again.
+    static final String BBOX = System.getProperty("bbox");
+    static final String POLYGON = System.getProperty("polygon");
+    static final String CHANGED = System.getProperty("changed");
 
+    static Manifest manifest;
+    static ResourceBudget budget;
+    static Metrics metrics;
 
-    public static void main(String... args) throws IOException, URISyntaxException {
+
+    public static void main(String... args) throws IOException, URISyntaxException, InterruptedException {
+        // The retry list of a previous run (manifest_dom-retry.csv) can be passed instead of the full CSV.
+        String csvFileName = args.length > 0 ? args[0] : CSV_FILE_NAME;
         List<String> fileLocations;
-        try (Stream<String> lines = Files.lines(Paths.get(CSV_FILE_NAME))) {
+        try (Stream<String> lines = Files.lines(Paths.get(csvFileName))) {
             fileLocations = lines.collect(Collectors.toList());
         }
 
-        int maxThreads = 1; 
-        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        TileGrid grid = new TileGrid(fileLocations);
+        Set<Long> selected = grid.select(BBOX, POLYGON, CHANGED, false);
+        if (selected.size() < grid.keys().size()) {
+            err.println("-- selected " + selected.size() + " of " + grid.keys().size() + " tiles");
+        }
 
-        for (String fileLocation : fileLocations) {
-            if (fileLocation.length() == 0 || fileLocation.startsWith("#")) {
-                continue;
+        manifest = new Manifest(Paths.get(MANIFEST_FILE), STAGES);
+        if (CHANGED != null) {
+            for (long key : selected) {
+                manifest.invalidate(grid.location(key), STAGES.get(0));
             }
+        }
+        metrics = new Metrics("dom", Paths.get(METRICS_FILE), Paths.get(PROMETHEUS_FILE));
+
+        // One thread per core. The downloads overlap freely, the hillshades are admitted
+        // by the resource budget according to the size of the tile.
+        budget = ResourceBudget.detect();
+        if (NATIVE_TERRAIN) {
+            budget = budget.limitMemory(Runtime.getRuntime().maxMemory());
+        }
+        err.println("-- budget: " + budget);
+        int maxThreads = Integer.getInteger("threads", budget.cores);
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
 
+        for (String fileLocation : grid.locations(selected)) {
+            long submitted = nanoTime();
             executor.execute(() -> {
                 try {
-                    makeitso(fileLocation);
+                    makeitso(fileLocation, nanoTime() - submitted);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             });
         }
         executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        manifest.writeRetryList();
+        manifest.close();
+        metrics.summary();
+        metrics.close();
     }
 
-    private static void makeitso(String fileLocation) throws IOException, URISyntaxException {
+    /**
+     * Runs a stage through the manifest and records its timing, sizes and exit code.
+     */
+    private static void run(String fileLocation, String stage, Set<String> pending, Map<String, List<Path>> outputs, long queueWaitNanos, Manifest.Step step) throws Exception {
+        int index = STAGES.indexOf(stage);
+        long bytesIn = index > 0 ? Metrics.size(outputs.get(STAGES.get(index - 1))) : 0;
+        Metrics.Sample sample = metrics.start(fileLocation, stage, queueWaitNanos, bytesIn);
+        try {
+            manifest.run(fileLocation, stage, pending, outputs.get(stage), step);
+        } catch (Exception e) {
+            metrics.finish(sample, "failed", Metrics.size(outputs.get(stage)));
+            throw e;
+        }
+        metrics.finish(sample, pending.contains(stage) ? "done" : "skipped", Metrics.size(outputs.get(stage)));
+    }
+
+    private static void makeitso(String fileLocation, long queueWaitNanos) throws Exception {
         String fileName = fileLocation.substring(fileLocation.lastIndexOf("/")+1);
         // String tifFileName = fileName.substring(20,29).replace("-", "_")+".tif";
-        out.println("-- Download: " + fileLocation);
         URI uri = new URI(fileLocation);
         File tifFile = Paths.get(TIF_DIRECTORY).resolve(fileName).toFile();
-        // ReadableByteChannel readableByteChannel = Channels.newChannel(uri.toURL().openStream());
-        // try(FileOutputStream fileOutputStream = new FileOutputStream(tifFile);) {
-        //     FileChannel fileChannel = fileOutputStream.getChannel();
-        //     fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);    
-        // }
-
         out.println(tifFile);
 
         String reliefFile = Paths.get(RELIEF_DIRECTORY, tifFile.getName()).toAbsolutePath().toString();
         out.println(reliefFile);
 
-        out.println("-- hillshade dom");
-        try {
-            String cmd = "gdaldem hillshade "+tifFile.getAbsolutePath().toString()+" "+reliefFile+" -compute_edges -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2";
-            out.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    out.println(line);
-                p.waitFor();
+        Map<String, List<Path>> outputs = Map.of(
+                "download", List.of(tifFile.toPath()),
+                "hillshade", List.of(Paths.get(reliefFile)));
+        Set<String> pending = manifest.pending(fileLocation, outputs);
+
+        run(fileLocation, "download", pending, outputs, queueWaitNanos, () -> {
+            out.println("-- Download: " + fileLocation);
+            ReadableByteChannel readableByteChannel = Channels.newChannel(uri.toURL().openStream());
+            try(FileOutputStream fileOutputStream = new FileOutputStream(tifFile);) {
+                FileChannel fileChannel = fileOutputStream.getChannel();
+                fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);    
             }
-            
-            if (p.exitValue() != 0) {
-                out.println("Error while processing: " + tifFile.toString());
+        });
+
+        run(fileLocation, "hillshade", pending, outputs, 0, () -> {
+            out.println("-- hillshade dom");
+            // gdaldem works line by line and needs a core, but hardly any memory.
+            long memory = NATIVE_TERRAIN ? GeoTiff.pixels(tifFile.toPath()) * BYTES_PER_PIXEL : 0;
+            long waiting = nanoTime();
+            ResourceBudget.Reservation reservation = budget.acquire(new ResourceBudget.Cost(1, memory));
+            try {
+                Metrics.current().admissionWait(nanoTime() - waiting);
+                if (NATIVE_TERRAIN) {
+                    Raster dom = GeoTiff.read(tifFile.toPath());
+                    GeoTiff.write(Paths.get(reliefFile), Terrain.hillshade(dom, Terrain.Hillshade.standard()), GeoTiff.SampleType.BYTE);
+                    return;
+                }
+                String cmd = "gdaldem hillshade "+tifFile.getAbsolutePath().toString()+" "+reliefFile+" -compute_edges -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2";
+                out.println(cmd);
+                int exitCode = WorkerPool.exec(cmd, EXEC_TIMEOUT);
+                if (exitCode != 0) {
+                    throw new IOException("Error while processing: " + tifFile.toString() + " (exit code " + exitCode + ")");
+                }
+            } finally {
+                reservation.close();
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                out.println(e.getMessage());
-        }
+        });
         
         // Files.delete(Paths.get(zipFile.getAbsolutePath()));
         // Files.delete(Paths.get(lasFile));
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fills nodata pixels like {@code gdal_fillnodata.py -md <maxDistance> -si <smoothingIterations>},
+ * with the quadrant search of GDALFillNodata: for every column within
+ * {@code maxDistance} pixels, the nearest valid pixel above and the nearest below
+ * the nodata pixel are candidates. In each quadrant (upper left including the own
+ * column, lower left, upper right, lower right) the candidate closest to the pixel
+ * wins, and the pixel gets the inverse distance weighted (1/d²) mean of the
+ * quadrant winners at most {@code maxDistance} pixels away. Filled pixels are then
+ * smoothed with a 3x3 mean {@code smoothingIterations} times; original pixels are
+ * left untouched. test/fillnodata_reference.java compares this with
+ * gdal_fillnodata.py.
+ *
+ * The nearest valid rows above and below are found in one pass down and one pass
+ * up over column strips; the rows are then filled in parallel.
+ */
+public class FillNoData {
+
+    // No valid pixel above or below in this column.
+    private static final int NONE = -1;
+
+    public static Raster fill(Raster raster, double maxDistance, int smoothingIterations) {
+        int w = raster.width;
+        int h = raster.height;
+        float[] src = raster.data;
+        int[] above = new int[w * h];
+        int[] below = new int[w * h];
+
+        int strips = Math.max(1, Math.min(w / 64, Runtime.getRuntime().availableProcessors() * 4));
+        IntStream.range(0, strips).parallel().forEach(strip -> {
+            int from = (int) ((long) w * strip / strips);
+            int to = (int) ((long) w * (strip + 1) / strips);
+            for (int y = 0; y < h; y++) {
+                for (int x = from; x < to; x++) {
+                    int i = y * w + x;
+                    above[i] = !raster.isNoData(src[i]) ? y : y > 0 ? above[i - w] : NONE;
+                }
+            }
+            for (int y = h - 1; y >= 0; y--) {
+                for (int x = from; x < to; x++) {
+                    int i = y * w + x;
+                    below[i] = !raster.isNoData(src[i]) ? y : y < h - 1 ? below[i + w] : NONE;
+                }
+            }
+        });
+
+        float[] out = new float[w * h];
+        boolean[] filled = new boolean[w * h];
+        int maxSteps = (int) Math.floor(maxDistance);
+        IntStream.range(0, h).parallel().forEach(y -> {
+            double[] distance = new double[4];
+            float[] value = new float[4];
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+                if (!raster.isNoData(src[i])) {
+                    out[i] = src[i];
+                    continue;
+                }
+                Arrays.fill(distance, maxDistance + 1);
+                int reach = maxSteps;
+                for (int step = 0; step <= reach; step++) {
+                    int left = Math.max(0, x - step);
+                    int right = Math.min(w - 1, x + step);
+                    closer(distance, value, 0, src, w, left, above[y * w + left], x, y);
+                    closer(distance, value, 1, src, w, left, below[y * w + left], x, y);
+                    if (step == 0) {
+                        continue;
+                    }
+                    closer(distance, value, 2, src, w, right, above[y * w + right], x, y);
+                    closer(distance, value, 3, src, w, right, below[y * w + right], x, y);
+                    // Columns further away than the farthest quadrant winner cannot win anything.
+                    if ((step & 3) == 0) {
+                        reach = (int) Math.floor(Math.max(Math.max(distance[0], distance[1]), Math.max(distance[2], distance[3])));
+                    }
+                }
+                double weightSum = 0;
+                double valueSum = 0;
+                for (int quadrant = 0; quadrant < 4; quadrant++) {
+                    if (distance[quadrant] <= maxDistance) {
+                        double weight = 1 / (distance[quadrant] * distance[quadrant]);
+                        weightSum += weight;
+                        valueSum += value[quadrant] * weight;
+                    }
+                }
+                if (weightSum > 0) {
+                    out[i] = (float) (valueSum / weightSum);
+                    filled[i] = true;
+                } else {
+                    out[i] = raster.noData;
+                }
+            }
+        });
+
+        Raster result = raster.withData(out, raster.noData);
+        for (int iteration = 0; iteration < smoothingIterations; iteration++) {
+            result = smooth(result, filled);
+        }
+        return result;
+    }
+
+    /**
+     * Takes the valid pixel at (column, row) for the quadrant if it is closer to
+     * (x, y) than the quadrant's current winner.
+     */
+    private static void closer(double[] distance, float[] value, int quadrant, float[] src, int w, int column, int row, int x, int y) {
+        if (row == NONE) {
+            return;
+        }
+        double dx = column - x;
+        double dy = row - y;
+        double squared = dx * dx + dy * dy;
+        if (squared < distance[quadrant] * distance[quadrant]) {
+            distance[quadrant] = Math.sqrt(squared);
+            value[quadrant] = src[row * w + column];
+        }
+    }
+
+    private static Raster smooth(Raster raster, boolean[] filled) {
+        int w = raster.width;
+        int h = raster.height;
+        float[] src = raster.data;
+        float[] out = src.clone();
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+                if (!filled[i]) {
+                    continue;
+                }
+                double sum = 0;
+                int n = 0;
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++) {
+                        float v = src[ny * w + nx];
+                        if (!raster.isNoData(v)) {
+                            sum += v;
+                            n++;
+                        }
+                    }
+                }
+                out[i] = (float) (sum / n);
+            }
+        });
+        return raster.withData(out, raster.noData);
+    }
+}
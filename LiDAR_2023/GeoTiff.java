@@ -0,0 +1,808 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.stream.IntStream;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal single band GeoTIFF reader and writer for the rasters of this pipeline.
+ *
+ * Reads classic TIFF and BigTIFF, strips or tiles, uncompressed, LZW or DEFLATE,
+ * predictor 1, 2 and 3, 8/16/32 bit samples. Writes tiled 256x256 DEFLATE with
+ * horizontal differencing (what {@code -co TILED=YES -co COMPRESS=DEFLATE
+ * -co PREDICTOR=2} produces), georeferenced in EPSG:2056 with GDAL_NODATA, in
+ * Cloud Optimized GeoTIFF layout with internal overviews ({@code -of COG}).
+ */
+public class GeoTiff {
+
+    public enum SampleType {
+        BYTE(1, 1),
+        FLOAT32(4, 3);
+
+        final int bytes;
+        final int sampleFormat;
+
+        SampleType(int bytes, int sampleFormat) {
+            this.bytes = bytes;
+            this.sampleFormat = sampleFormat;
+        }
+    }
+
+    static final int TILE_SIZE = 256;
+    static final int DEFLATE_LEVEL = Integer.getInteger("geotiff.deflate.level", 6);
+
+    // Internal overviews down to one block. -Dgeotiff.overviews=false writes the full resolution only.
+    static final boolean OVERVIEWS = Boolean.parseBoolean(System.getProperty("geotiff.overviews", "true"));
+
+    static final int NEW_SUBFILE_TYPE = 254;
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int BITS_PER_SAMPLE = 258;
+    static final int COMPRESSION = 259;
+    static final int PHOTOMETRIC = 262;
+    static final int STRIP_OFFSETS = 273;
+    static final int SAMPLES_PER_PIXEL = 277;
+    static final int ROWS_PER_STRIP = 278;
+    static final int STRIP_BYTE_COUNTS = 279;
+    static final int PLANAR_CONFIGURATION = 284;
+    static final int PREDICTOR = 317;
+    static final int TILE_WIDTH = 322;
+    static final int TILE_LENGTH = 323;
+    static final int TILE_OFFSETS = 324;
+    static final int TILE_BYTE_COUNTS = 325;
+    static final int SAMPLE_FORMAT = 339;
+    static final int MODEL_PIXEL_SCALE = 33550;
+    static final int MODEL_TIEPOINT = 33922;
+    static final int GEO_KEY_DIRECTORY = 34735;
+    static final int GDAL_NODATA = 42113;
+
+    // ------------------------------------------------------------------ reading
+
+    public static Raster read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Ifd ifd = Ifd.first(channel);
+            return ifd.read(channel);
+        }
+    }
+
+    /**
+     * A window of the first image with its upper left pixel at ({@code x}, {@code y}).
+     * Only the blocks overlapping the window are read; pixels outside the image are
+     * nodata.
+     */
+    public static Raster readWindow(Path path, int x, int y, int width, int height) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Ifd ifd = Ifd.first(channel);
+            Raster window = ifd.georeferenced(x, y, width, height);
+            if (x < ifd.width() && y < ifd.height() && x + width > 0 && y + height > 0) {
+                ifd.readBlocks(channel, window, x, y);
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Width times height of the first image, from the header only.
+     */
+    public static long pixels(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Ifd ifd = Ifd.first(channel);
+            return ifd.get(IMAGE_WIDTH, 0) * ifd.get(IMAGE_LENGTH, 0);
+        }
+    }
+
+    /**
+     * One image file directory with its tag values.
+     */
+    static class Ifd {
+        final ByteOrder order;
+        final boolean bigTiff;
+        final Map<Integer, long[]> longs = new HashMap<>();
+        final Map<Integer, double[]> doubles = new HashMap<>();
+        final Map<Integer, String> strings = new HashMap<>();
+        long next;
+
+        Ifd(ByteOrder order, boolean bigTiff) {
+            this.order = order;
+            this.bigTiff = bigTiff;
+        }
+
+        static Ifd first(FileChannel channel) throws IOException {
+            ByteBuffer header = readFully(channel, 0, 16, ByteOrder.LITTLE_ENDIAN);
+            ByteOrder order;
+            if (header.get(0) == 'I' && header.get(1) == 'I') {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException("Not a TIFF file");
+            }
+            header.order(order);
+            int magic = header.getShort(2) & 0xffff;
+            if (magic == 42) {
+                return read(channel, order, false, header.getInt(4) & 0xffffffffL);
+            } else if (magic == 43) {
+                return read(channel, order, true, header.getLong(8));
+            }
+            throw new IOException("Not a TIFF file (magic " + magic + ")");
+        }
+
+        static Ifd read(FileChannel channel, ByteOrder order, boolean bigTiff, long offset) throws IOException {
+            Ifd ifd = new Ifd(order, bigTiff);
+            int entrySize = bigTiff ? 20 : 12;
+            int countSize = bigTiff ? 8 : 2;
+            ByteBuffer countBuffer = readFully(channel, offset, countSize, order);
+            long count = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xffff;
+            ByteBuffer entries = readFully(channel, offset + countSize, (int) count * entrySize + (bigTiff ? 8 : 4), order);
+            for (int i = 0; i < count; i++) {
+                int base = i * entrySize;
+                int tag = entries.getShort(base) & 0xffff;
+                int type = entries.getShort(base + 2) & 0xffff;
+                long n = bigTiff ? entries.getLong(base + 4) : entries.getInt(base + 4) & 0xffffffffL;
+                int inline = bigTiff ? 8 : 4;
+                int size = (int) n * typeSize(type);
+                ByteBuffer value;
+                if (size <= inline) {
+                    value = entries.duplicate().order(order);
+                    value.position(base + (bigTiff ? 12 : 8));
+                    value = value.slice().order(order);
+                } else {
+                    long valueOffset = bigTiff ? entries.getLong(base + 12) : entries.getInt(base + 8) & 0xffffffffL;
+                    value = readFully(channel, valueOffset, size, order);
+                }
+                ifd.put(tag, type, (int) n, value);
+            }
+            int nextAt = (int) count * entrySize;
+            ifd.next = bigTiff ? entries.getLong(nextAt) : entries.getInt(nextAt) & 0xffffffffL;
+            return ifd;
+        }
+
+        private void put(int tag, int type, int n, ByteBuffer value) {
+            switch (type) {
+                case 2 -> {
+                    byte[] bytes = new byte[n];
+                    value.get(0, bytes);
+                    strings.put(tag, new String(bytes, StandardCharsets.US_ASCII).replace("\0", ""));
+                }
+                case 11, 12 -> {
+                    double[] d = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        d[i] = type == 11 ? value.getFloat(i * 4) : value.getDouble(i * 8);
+                    }
+                    doubles.put(tag, d);
+                }
+                case 1, 3, 4, 16, 6, 8, 9, 17, 7 -> {
+                    long[] l = new long[n];
+                    for (int i = 0; i < n; i++) {
+                        l[i] = switch (type) {
+                            case 1, 7 -> value.get(i) & 0xff;
+                            case 6 -> value.get(i);
+                            case 3 -> value.getShort(i * 2) & 0xffff;
+                            case 8 -> value.getShort(i * 2);
+                            case 4 -> value.getInt(i * 4) & 0xffffffffL;
+                            case 9 -> value.getInt(i * 4);
+                            default -> value.getLong(i * 8);
+                        };
+                    }
+                    longs.put(tag, l);
+                }
+                default -> {
+                    // RATIONAL etc. are not needed here.
+                }
+            }
+        }
+
+        long get(int tag, long defaultValue) {
+            long[] l = longs.get(tag);
+            return l == null || l.length == 0 ? defaultValue : l[0];
+        }
+
+        int width() {
+            return (int) get(IMAGE_WIDTH, 0);
+        }
+
+        int height() {
+            return (int) get(IMAGE_LENGTH, 0);
+        }
+
+        boolean tiled() {
+            return longs.containsKey(TILE_OFFSETS);
+        }
+
+        int blockWidth() {
+            return tiled() ? (int) get(TILE_WIDTH, 0) : width();
+        }
+
+        int blockHeight() {
+            return tiled() ? (int) get(TILE_LENGTH, 0) : (int) Math.min(get(ROWS_PER_STRIP, height()), height());
+        }
+
+        int blocksAcross() {
+            return (width() + blockWidth() - 1) / blockWidth();
+        }
+
+        float noData() {
+            String s = strings.get(GDAL_NODATA);
+            if (s == null || s.isBlank()) {
+                return Float.NaN;
+            }
+            return Float.parseFloat(s.trim());
+        }
+
+        Raster read(FileChannel channel) throws IOException {
+            Raster raster = georeferenced(0, 0, width(), height());
+            readBlocks(channel, raster, 0, 0);
+            return raster;
+        }
+
+        /**
+         * An empty (nodata) raster for the window at ({@code x}, {@code y}) of this image.
+         */
+        Raster georeferenced(int x, int y, int width, int height) throws IOException {
+            double[] scale = doubles.get(MODEL_PIXEL_SCALE);
+            double[] tiepoint = doubles.get(MODEL_TIEPOINT);
+            if (scale == null || tiepoint == null) {
+                throw new IOException("No georeferencing (ModelPixelScale/ModelTiepoint)");
+            }
+            double minX = tiepoint[3] - tiepoint[0] * scale[0];
+            double maxY = tiepoint[4] + tiepoint[1] * scale[1];
+            return new Raster(width, height, minX + x * scale[0], maxY - y * scale[0], scale[0], noData());
+        }
+
+        /**
+         * Decodes all blocks overlapping {@code target}, whose upper left pixel is at
+         * ({@code offsetX}, {@code offsetY}) in this image.
+         */
+        void readBlocks(FileChannel channel, Raster target, int offsetX, int offsetY) throws IOException {
+            if (get(SAMPLES_PER_PIXEL, 1) != 1 && get(PLANAR_CONFIGURATION, 1) != 2) {
+                throw new IOException("Only single band images are supported");
+            }
+            long[] offsets = tiled() ? longs.get(TILE_OFFSETS) : longs.get(STRIP_OFFSETS);
+            long[] counts = tiled() ? longs.get(TILE_BYTE_COUNTS) : longs.get(STRIP_BYTE_COUNTS);
+            int bw = blockWidth();
+            int bh = blockHeight();
+            int across = blocksAcross();
+            int bx0 = Math.max(0, offsetX / bw);
+            int by0 = Math.max(0, offsetY / bh);
+            int bx1 = Math.min(across - 1, (offsetX + target.width - 1) / bw);
+            int by1 = Math.min((height() + bh - 1) / bh - 1, (offsetY + target.height - 1) / bh);
+            for (int by = by0; by <= by1; by++) {
+                for (int bx = bx0; bx <= bx1; bx++) {
+                    int index = by * across + bx;
+                    if (counts[index] == 0) {
+                        continue;
+                    }
+                    ByteBuffer compressed = readFully(channel, offsets[index], (int) counts[index], order);
+                    int rows = tiled() ? bh : Math.min(bh, height() - by * bh);
+                    float[] block = decode(compressed, bw, rows);
+                    copyBlock(block, bw, rows, bx * bw - offsetX, by * bh - offsetY, target);
+                }
+            }
+        }
+
+        private static void copyBlock(float[] block, int bw, int bh, int x0, int y0, Raster target) {
+            int fromY = Math.max(0, -y0);
+            int toY = Math.min(bh, target.height - y0);
+            int fromX = Math.max(0, -x0);
+            int toX = Math.min(bw, target.width - x0);
+            if (fromX >= toX) {
+                return;
+            }
+            for (int y = fromY; y < toY; y++) {
+                System.arraycopy(block, y * bw + fromX, target.data, (y0 + y) * target.width + x0 + fromX, toX - fromX);
+            }
+        }
+
+        float[] decode(ByteBuffer compressed, int bw, int bh) throws IOException {
+            int bits = (int) get(BITS_PER_SAMPLE, 8);
+            int bytesPerSample = bits / 8;
+            int format = (int) get(SAMPLE_FORMAT, 1);
+            int compression = (int) get(COMPRESSION, 1);
+            int predictor = (int) get(PREDICTOR, 1);
+            byte[] raw = new byte[bw * bh * bytesPerSample];
+            byte[] input = new byte[compressed.remaining()];
+            compressed.get(input);
+            switch (compression) {
+                case 1 -> System.arraycopy(input, 0, raw, 0, Math.min(input.length, raw.length));
+                case 8, 32946 -> inflate(input, raw);
+                case 5 -> Lzw.decode(input, raw);
+                default -> throw new IOException("Unsupported compression " + compression);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(raw).order(order);
+            if (predictor == 2) {
+                undoHorizontalDifferencing(buffer, bw, bh, bytesPerSample);
+            } else if (predictor == 3) {
+                buffer = undoFloatingPointPredictor(raw, bw, bh, bytesPerSample);
+            }
+            float[] values = new float[bw * bh];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = switch (bytesPerSample) {
+                    case 1 -> format == 2 ? buffer.get(i) : buffer.get(i) & 0xff;
+                    case 2 -> format == 2 ? buffer.getShort(i * 2) : buffer.getShort(i * 2) & 0xffff;
+                    case 4 -> format == 3 ? buffer.getFloat(i * 4) : (float) (format == 2 ? buffer.getInt(i * 4) : buffer.getInt(i * 4) & 0xffffffffL);
+                    case 8 -> (float) buffer.getDouble(i * 8);
+                    default -> throw new IOException("Unsupported sample size " + bits);
+                };
+            }
+            return values;
+        }
+    }
+
+    static void undoHorizontalDifferencing(ByteBuffer buffer, int bw, int bh, int bytesPerSample) {
+        for (int y = 0; y < bh; y++) {
+            int row = y * bw;
+            for (int x = 1; x < bw; x++) {
+                int i = row + x;
+                switch (bytesPerSample) {
+                    case 1 -> buffer.put(i, (byte) (buffer.get(i) + buffer.get(i - 1)));
+                    case 2 -> buffer.putShort(i * 2, (short) (buffer.getShort(i * 2) + buffer.getShort((i - 1) * 2)));
+                    case 4 -> buffer.putInt(i * 4, buffer.getInt(i * 4) + buffer.getInt((i - 1) * 4));
+                    default -> buffer.putLong(i * 8, buffer.getLong(i * 8) + buffer.getLong((i - 1) * 8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Predictor 3: each row holds the bytes of all samples as planes (most significant
+     * first), differenced byte by byte.
+     */
+    static ByteBuffer undoFloatingPointPredictor(byte[] raw, int bw, int bh, int bytesPerSample) {
+        byte[] out = new byte[raw.length];
+        int rowBytes = bw * bytesPerSample;
+        for (int y = 0; y < bh; y++) {
+            int row = y * rowBytes;
+            for (int i = 1; i < rowBytes; i++) {
+                raw[row + i] += raw[row + i - 1];
+            }
+            for (int x = 0; x < bw; x++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    // plane b holds byte b counted from the most significant one
+                    out[row + x * bytesPerSample + (bytesPerSample - 1 - b)] = raw[row + b * bw + x];
+                }
+            }
+        }
+        return ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void inflate(byte[] input, byte[] output) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int n = 0;
+            while (n < output.length && !inflater.finished()) {
+                int r = inflater.inflate(output, n, output.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * TIFF flavour of LZW: MSB first codes, early change.
+     */
+    static class Lzw {
+        static void decode(byte[] input, byte[] output) throws IOException {
+            byte[][] table = new byte[4096][];
+            for (int i = 0; i < 256; i++) {
+                table[i] = new byte[] { (byte) i };
+            }
+            int next = 258;
+            int codeLength = 9;
+            long bitBuffer = 0;
+            int bitCount = 0;
+            int in = 0;
+            int out = 0;
+            byte[] previous = null;
+            while (true) {
+                while (bitCount < codeLength && in < input.length) {
+                    bitBuffer = (bitBuffer << 8) | (input[in++] & 0xff);
+                    bitCount += 8;
+                }
+                if (bitCount < codeLength) {
+                    return;
+                }
+                int code = (int) ((bitBuffer >>> (bitCount - codeLength)) & ((1 << codeLength) - 1));
+                bitCount -= codeLength;
+                if (code == 257) {
+                    return;
+                }
+                if (code == 256) {
+                    next = 258;
+                    codeLength = 9;
+                    previous = null;
+                    continue;
+                }
+                byte[] entry;
+                if (code < next && table[code] != null) {
+                    entry = table[code];
+                    if (previous != null) {
+                        table[next++] = concat(previous, entry[0]);
+                    }
+                } else if (previous != null) {
+                    entry = concat(previous, previous[0]);
+                    table[next++] = entry;
+                } else {
+                    throw new IOException("Invalid LZW code " + code);
+                }
+                int n = Math.min(entry.length, output.length - out);
+                System.arraycopy(entry, 0, output, out, n);
+                out += n;
+                previous = entry;
+                if (next + 1 >= (1 << codeLength) && codeLength < 12) {
+                    codeLength++;
+                }
+            }
+        }
+
+        private static byte[] concat(byte[] a, byte b) {
+            byte[] c = new byte[a.length + 1];
+            System.arraycopy(a, 0, c, 0, a.length);
+            c[a.length] = b;
+            return c;
+        }
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int size, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(order);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.order(order);
+    }
+
+    static int typeSize(int type) {
+        return switch (type) {
+            case 1, 2, 6, 7 -> 1;
+            case 3, 8 -> 2;
+            case 4, 9, 11, 13 -> 4;
+            default -> 8;
+        };
+    }
+
+    // ------------------------------------------------------------------ writing
+
+    /**
+     * Writes {@code raster} as Cloud Optimized GeoTIFF: tiled, DEFLATE compressed
+     * with predictor 2, internal overviews (unless {@code -Dgeotiff.overviews=false}).
+     */
+    public static void write(Path path, Raster raster, SampleType type) throws IOException {
+        write(path, raster, type, OVERVIEWS);
+    }
+
+    /**
+     * Writes {@code raster} in COG layout: all directories first, then the blocks of
+     * the overviews from the smallest one, then the full resolution blocks. Blocks
+     * are compressed in parallel. The file is written next to {@code path} and
+     * moved into place when complete.
+     */
+    public static void write(Path path, Raster raster, SampleType type, boolean overviews) throws IOException {
+        List<Raster> levels = new ArrayList<>();
+        levels.add(raster);
+        while (overviews && (levels.get(levels.size() - 1).width > TILE_SIZE || levels.get(levels.size() - 1).height > TILE_SIZE)) {
+            levels.add(downsample(levels.get(levels.size() - 1)));
+        }
+        byte[][][] blocks = new byte[levels.size()][][];
+        for (int level = 0; level < levels.size(); level++) {
+            blocks[level] = encodeTiles(levels.get(level), type);
+        }
+
+        // Directory sizes do not depend on the offsets, so lay out with placeholders first.
+        byte[] ghost = ghostArea();
+        long[] ifdPositions = new long[levels.size()];
+        long position = 8 + ghost.length;
+        for (int level = 0; level < levels.size(); level++) {
+            ifdPositions[level] = position;
+            position += ifd(levels.get(level), type, level > 0, new long[blocks[level].length], new long[blocks[level].length], position, 0).remaining();
+        }
+        long[][] offsets = new long[levels.size()][];
+        long[][] counts = new long[levels.size()][];
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            offsets[level] = new long[blocks[level].length];
+            counts[level] = new long[blocks[level].length];
+            for (int i = 0; i < blocks[level].length; i++) {
+                offsets[level][i] = position;
+                counts[level][i] = blocks[level][i].length;
+                position += blocks[level][i].length;
+            }
+        }
+        if (position > 0xffffffffL) {
+            throw new IOException("Too large for classic TIFF: " + path);
+        }
+
+        // Unique, so two workers writing the same tile on a shared file system never write into one file.
+        Path part = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) ifdPositions[0]).flip();
+                long written = writeFully(channel, header, 0);
+                written += writeFully(channel, ByteBuffer.wrap(ghost), written);
+                for (int level = 0; level < levels.size(); level++) {
+                    long next = level + 1 < levels.size() ? ifdPositions[level + 1] : 0;
+                    written += writeFully(channel, ifd(levels.get(level), type, level > 0, offsets[level], counts[level], ifdPositions[level], next), written);
+                }
+                for (int level = levels.size() - 1; level >= 0; level--) {
+                    for (byte[] block : blocks[level]) {
+                        written += writeFully(channel, ByteBuffer.wrap(block), written);
+                    }
+                }
+            }
+            Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * GDAL's structural metadata right after the header, which tells GDAL (and COG
+     * validators) that the directories come before the data.
+     */
+    static byte[] ghostArea() {
+        String body = "LAYOUT=IFDS_BEFORE_DATA\nBLOCK_ORDER=ROW_MAJOR\nKNOWN_INCOMPATIBLE_EDITION=NO\n ";
+        String ghost = String.format("GDAL_STRUCTURAL_METADATA_SIZE=%06d bytes\n", body.length()) + body;
+        // Word aligned, so the directories that follow start on an even offset.
+        return (ghost.length() % 2 == 0 ? ghost : ghost + " ").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * All blocks of one image, row by row, compressed in parallel.
+     */
+    static byte[][] encodeTiles(Raster raster, SampleType type) {
+        int across = (raster.width + TILE_SIZE - 1) / TILE_SIZE;
+        int down = (raster.height + TILE_SIZE - 1) / TILE_SIZE;
+        return IntStream.range(0, across * down).parallel()
+                .mapToObj(i -> encodeTile(raster, i % across, i / across, type))
+                .toArray(byte[][]::new);
+    }
+
+    /**
+     * Half the resolution: mean of the valid pixels of each 2x2 block, nodata
+     * where all four are nodata (gdaladdo {@code -r average}).
+     */
+    static Raster downsample(Raster raster) {
+        int w = (raster.width + 1) / 2;
+        int h = (raster.height + 1) / 2;
+        float[] out = new float[w * h];
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                double sum = 0;
+                int n = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int sx = 2 * x + dx;
+                        int sy = 2 * y + dy;
+                        if (sx < raster.width && sy < raster.height) {
+                            float v = raster.data[sy * raster.width + sx];
+                            if (!raster.isNoData(v)) {
+                                sum += v;
+                                n++;
+                            }
+                        }
+                    }
+                }
+                out[y * w + x] = n == 0 ? raster.noData : (float) (sum / n);
+            }
+        });
+        return new Raster(w, h, raster.minX, raster.maxY, raster.resolution * 2, raster.noData, out);
+    }
+
+    static byte[] encodeTile(Raster raster, int tx, int ty, SampleType type) {
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * type.bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < TILE_SIZE; y++) {
+            int ry = ty * TILE_SIZE + y;
+            int previous = 0;
+            for (int x = 0; x < TILE_SIZE; x++) {
+                int rx = tx * TILE_SIZE + x;
+                // Tiles are padded to full size; the padding repeats nodata.
+                float value = rx < raster.width && ry < raster.height ? raster.data[ry * raster.width + rx] : raster.noData;
+                int sample = type == SampleType.FLOAT32 ? Float.floatToRawIntBits(value) : Math.round(Math.max(0, Math.min(255, value)));
+                // Horizontal differencing (predictor 2) on the sample words.
+                if (type == SampleType.FLOAT32) {
+                    buffer.putInt(sample - previous);
+                } else {
+                    buffer.put((byte) (sample - previous));
+                }
+                previous = sample;
+            }
+        }
+        return deflate(buffer.array());
+    }
+
+    static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(DEFLATE_LEVEL);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static ByteBuffer ifd(Raster raster, SampleType type, boolean overview, long[] offsets, long[] counts, long position, long next) {
+        String noData = type == SampleType.BYTE ? String.valueOf(Math.round(raster.noData)) : noDataString(raster.noData);
+        IfdWriter w = new IfdWriter(position);
+        if (overview) {
+            // NewSubfileType: reduced resolution version of the first image
+            w.longs(NEW_SUBFILE_TYPE, 1);
+        }
+        w.shorts(IMAGE_WIDTH, raster.width);
+        w.shorts(IMAGE_LENGTH, raster.height);
+        w.shorts(BITS_PER_SAMPLE, type.bytes * 8);
+        w.shorts(COMPRESSION, 8);
+        w.shorts(PHOTOMETRIC, 1);
+        w.shorts(SAMPLES_PER_PIXEL, 1);
+        w.shorts(PLANAR_CONFIGURATION, 1);
+        w.shorts(PREDICTOR, 2);
+        w.shorts(TILE_WIDTH, TILE_SIZE);
+        w.shorts(TILE_LENGTH, TILE_SIZE);
+        w.longs(TILE_OFFSETS, offsets);
+        w.longs(TILE_BYTE_COUNTS, counts);
+        w.shorts(SAMPLE_FORMAT, type.sampleFormat);
+        w.doubles(MODEL_PIXEL_SCALE, raster.resolution, raster.resolution, 0);
+        w.doubles(MODEL_TIEPOINT, 0, 0, 0, raster.minX, raster.maxY, 0);
+        // GTModelType projected, GTRasterType PixelIsArea, ProjectedCSType EPSG:2056, linear unit metre
+        w.shorts(GEO_KEY_DIRECTORY, 1, 1, 0, 4, 1024, 0, 1, 1, 1025, 0, 1, 1, 3072, 0, 1, 2056, 3076, 0, 1, 9001);
+        w.ascii(GDAL_NODATA, noData);
+        return w.finish(next);
+    }
+
+    static String noDataString(float noData) {
+        if (Float.isNaN(noData)) {
+            return "nan";
+        }
+        return noData == Math.rint(noData) ? String.valueOf((long) noData) : String.valueOf(noData);
+    }
+
+    /**
+     * Collects classic TIFF IFD entries (sorted by tag, as required) and lays out
+     * values that do not fit inline right after the directory.
+     */
+    static class IfdWriter {
+        private final long position;
+        private final java.util.TreeMap<Integer, Object[]> entries = new java.util.TreeMap<>();
+
+        IfdWriter(long position) {
+            this.position = position;
+        }
+
+        void shorts(int tag, int... values) {
+            boolean fitsShort = true;
+            for (int v : values) {
+                fitsShort &= v >= 0 && v <= 0xffff;
+            }
+            if (fitsShort) {
+                entries.put(tag, new Object[] { 3, values });
+            } else {
+                long[] l = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    l[i] = values[i];
+                }
+                longs(tag, l);
+            }
+        }
+
+        void longs(int tag, long... values) {
+            entries.put(tag, new Object[] { 4, values });
+        }
+
+        void doubles(int tag, double... values) {
+            entries.put(tag, new Object[] { 12, values });
+        }
+
+        void ascii(int tag, String value) {
+            entries.put(tag, new Object[] { 2, (value + "\0").getBytes(StandardCharsets.US_ASCII) });
+        }
+
+        ByteBuffer finish(long next) {
+            int directorySize = 2 + entries.size() * 12 + 4;
+            int extraSize = 0;
+            for (Object[] e : entries.values()) {
+                int size = size(e);
+                if (size > 4) {
+                    extraSize += size + (size & 1);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(directorySize + extraSize).order(ByteOrder.LITTLE_ENDIAN);
+            long extra = position + directorySize;
+            ByteBuffer values = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            values.position(directorySize);
+            buffer.putShort((short) entries.size());
+            for (Map.Entry<Integer, Object[]> entry : entries.entrySet()) {
+                Object[] e = entry.getValue();
+                int type = (Integer) e[0];
+                buffer.putShort(entry.getKey().shortValue());
+                buffer.putShort((short) type);
+                buffer.putInt(count(e));
+                int size = size(e);
+                ByteBuffer target;
+                if (size <= 4) {
+                    target = buffer;
+                } else {
+                    buffer.putInt((int) extra);
+                    extra += size + (size & 1);
+                    target = values;
+                }
+                int start = target.position();
+                switch (type) {
+                    case 2 -> target.put((byte[]) e[1]);
+                    case 3 -> {
+                        for (int v : (int[]) e[1]) {
+                            target.putShort((short) v);
+                        }
+                    }
+                    case 4 -> {
+                        for (long v : (long[]) e[1]) {
+                            target.putInt((int) v);
+                        }
+                    }
+                    default -> {
+                        for (double v : (double[]) e[1]) {
+                            target.putDouble(v);
+                        }
+                    }
+                }
+                if (target == buffer) {
+                    buffer.position(start + 4);
+                } else if ((size & 1) == 1) {
+                    values.put((byte) 0);
+                }
+            }
+            buffer.putInt((int) next);
+            buffer.position(0);
+            return buffer;
+        }
+
+        private static int count(Object[] e) {
+            return switch ((Integer) e[0]) {
+                case 2 -> ((byte[]) e[1]).length;
+                case 3 -> ((int[]) e[1]).length;
+                case 4 -> ((long[]) e[1]).length;
+                default -> ((double[]) e[1]).length;
+            };
+        }
+
+        private static int size(Object[] e) {
+            return count(e) * typeSize((Integer) e[0]);
+        }
+    }
+
+    static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
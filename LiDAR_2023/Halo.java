@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Processing across tile seams. A tile is extended by a halo of pixels taken from
+ * its eight neighbours, processed (fill, hillshade, slope) on the extended grid and
+ * cropped back, so the results do not depend on where the tile borders are.
+ *
+ * Tiles are identified by the kilometre coordinates of their lower left corner,
+ * e.g. 2600/1200, packed into a long with {@link #key}.
+ */
+public class Halo {
+
+    public static long key(int e, int n) {
+        return ((long) e << 32) | (n & 0xffffffffL);
+    }
+
+    public static int e(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int n(long key) {
+        return (int) key;
+    }
+
+    /**
+     * The tile and its eight neighbours, index {@code (1 - dn) * 3 + (de + 1)}: north
+     * row first like the rows of a raster.
+     */
+    public static long[] neighbourhood(long key) {
+        long[] keys = new long[9];
+        for (int dn = 1; dn >= -1; dn--) {
+            for (int de = -1; de <= 1; de++) {
+                keys[(1 - dn) * 3 + de + 1] = key(e(key) + de, n(key) + dn);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Mosaic of the centre tile and a {@code halo} pixel wide border from its
+     * neighbours (same order as {@link #neighbourhood}). Missing neighbours are nodata.
+     * All tiles must have the size and resolution of the centre.
+     */
+    public static Raster extend(Raster[] tiles, int halo) {
+        Raster centre = tiles[4];
+        int w = centre.width;
+        int h = centre.height;
+        int ew = w + 2 * halo;
+        int eh = h + 2 * halo;
+        float[] data = new float[ew * eh];
+        for (int y = 0; y < eh; y++) {
+            int ty = Math.floorDiv(y - halo, h);
+            int sy = y - halo - ty * h;
+            for (int tx = -1; tx <= 1; tx++) {
+                // Columns of the extended row that come from tile tx.
+                int from = Math.max(0, halo + tx * w);
+                int to = Math.min(ew, halo + (tx + 1) * w);
+                Raster tile = tiles[(ty + 1) * 3 + tx + 1];
+                if (tile == null) {
+                    Arrays.fill(data, y * ew + from, y * ew + to, centre.noData);
+                    continue;
+                }
+                int sx = from - halo - tx * w;
+                if (tile.noData == centre.noData) {
+                    System.arraycopy(tile.data, sy * w + sx, data, y * ew + from, to - from);
+                } else {
+                    for (int x = from; x < to; x++) {
+                        float v = tile.data[sy * w + sx + x - from];
+                        data[y * ew + x] = tile.isNoData(v) ? centre.noData : v;
+                    }
+                }
+            }
+        }
+        return new Raster(ew, eh, centre.minX - halo * centre.resolution, centre.maxY + halo * centre.resolution,
+                centre.resolution, centre.noData, data);
+    }
+
+    /**
+     * The inner part of an extended raster, without the halo.
+     */
+    public static Raster crop(Raster extended, int halo) {
+        int w = extended.width - 2 * halo;
+        int h = extended.height - 2 * halo;
+        float[] data = new float[w * h];
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(extended.data, (y + halo) * extended.width + halo, data, y * w, w);
+        }
+        return new Raster(w, h, extended.minX + halo * extended.resolution, extended.maxY - halo * extended.resolution,
+                extended.resolution, extended.noData, data);
+    }
+
+    /**
+     * Position of (x, y) on a Hilbert curve over a 2^order square grid. Tiles sorted by
+     * it are processed so that neighbours follow each other closely.
+     */
+    public static long hilbert(int order, int x, int y) {
+        long d = 0;
+        for (int s = 1 << (order - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant.
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Least recently used rasters up to a byte budget.
+     */
+    public static class Cache {
+
+        @FunctionalInterface
+        public interface Loader {
+            /** The raster, or null if there is none. */
+            Raster load() throws Exception;
+        }
+
+        private final long capacity;
+        private final LinkedHashMap<String, Raster> rasters = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+
+        public Cache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        public Raster get(String key, Loader loader) throws Exception {
+            synchronized (this) {
+                Raster raster = rasters.get(key);
+                if (raster != null) {
+                    hits++;
+                    return raster;
+                }
+                misses++;
+            }
+            // Loaded outside the lock; two threads may load the same raster once.
+            Raster raster = loader.load();
+            if (raster != null) {
+                put(key, raster);
+            }
+            return raster;
+        }
+
+        public synchronized void put(String key, Raster raster) {
+            Raster old = rasters.put(key, raster);
+            if (old != null) {
+                bytes -= size(old);
+            }
+            bytes += size(raster);
+            Iterator<Map.Entry<String, Raster>> it = rasters.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                Map.Entry<String, Raster> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                bytes -= size(eldest.getValue());
+                it.remove();
+            }
+        }
+
+        public synchronized void remove(String key) {
+            Raster old = rasters.remove(key);
+            if (old != null) {
+                bytes -= size(old);
+            }
+        }
+
+        private static long size(Raster raster) {
+            return (long) raster.data.length * Float.BYTES;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return rasters.size() + " rasters, " + (bytes >> 20) + " MB, " + hits + " hits, " + misses + " misses";
+        }
+    }
+
+    /**
+     * Tracks the tiles of a run. A tile may be filled once each of its neighbours in
+     * the run has been rasterized or has failed, and its rasterized inputs may be
+     * deleted once it and each of its neighbours are past the fill stage.
+     * Neighbours that are not part of the run are not waited for.
+     */
+    public static final class Gate {
+
+        private enum State { NEW, RASTERIZED, FILLED, FAILED }
+
+        private final Map<Long, State> states = new HashMap<>();
+        private final Map<Long, Boolean> released = new HashMap<>();
+        private final Map<Long, Boolean> deletable = new HashMap<>();
+
+        public Gate(Collection<Long> keys) {
+            add(keys);
+        }
+
+        /**
+         * More tiles of the run, e.g. a newly claimed chunk. Tiles that were already
+         * released do not wait for them.
+         */
+        public synchronized void add(Collection<Long> keys) {
+            for (long key : keys) {
+                states.putIfAbsent(key, State.NEW);
+            }
+        }
+
+        /**
+         * Tiles that can now be filled, possibly including this one.
+         */
+        public synchronized List<Long> rasterized(long key) {
+            states.put(key, State.RASTERIZED);
+            return ready(key);
+        }
+
+        /**
+         * Tiles whose rasterized inputs are no longer needed.
+         */
+        public synchronized List<Long> filled(long key) {
+            states.put(key, State.FILLED);
+            return deletable(key);
+        }
+
+        /**
+         * A tile failed in any stage. Returns the tiles that can now be filled; see
+         * {@link #deletable} for the inputs that are no longer needed.
+         */
+        public synchronized List<Long> failed(long key) {
+            State state = states.get(key);
+            if (state == State.NEW || state == State.RASTERIZED) {
+                states.put(key, State.FAILED);
+            }
+            return ready(key);
+        }
+
+        private List<Long> ready(long key) {
+            List<Long> ready = new ArrayList<>();
+            for (long candidate : neighbourhood(key)) {
+                if (states.get(candidate) == State.RASTERIZED && !released.containsKey(candidate) && neighbours(candidate, State.RASTERIZED)) {
+                    released.put(candidate, true);
+                    ready.add(candidate);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * Tiles around this one whose rasterized inputs are no longer needed, each
+         * reported once.
+         */
+        public synchronized List<Long> deletable(long key) {
+            List<Long> result = new ArrayList<>();
+            for (long candidate : neighbourhood(key)) {
+                if (states.get(candidate) == State.FILLED && !deletable.containsKey(candidate) && neighbours(candidate, State.FILLED)) {
+                    deletable.put(candidate, true);
+                    result.add(candidate);
+                }
+            }
+            return result;
+        }
+
+        /** Every neighbour in the run has reached at least the given state, or failed. */
+        private boolean neighbours(long key, State atLeast) {
+            for (long neighbour : neighbourhood(key)) {
+                State state = states.get(neighbour);
+                if (state != null && state != State.FAILED && state.ordinal() < atLeast.ordinal()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
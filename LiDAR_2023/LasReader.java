@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads uncompressed LAS 1.0 - 1.4 files. The point data records are memory-mapped
+ * (in chunks below 2 GB) and accessed by index, nothing is allocated per point.
+ * Accessors are safe to call from several threads.
+ */
+public class LasReader implements AutoCloseable {
+
+    public final int versionMajor;
+    public final int versionMinor;
+    public final int pointFormat;
+    public final int recordLength;
+    public final long pointCount;
+    public final long offsetToPoints;
+    public final double scaleX, scaleY, scaleZ;
+    public final double offsetX, offsetY, offsetZ;
+    public final double minX, maxX, minY, maxY, minZ, maxZ;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long recordsPerChunk;
+    private final int classificationOffset;
+
+    public static LasReader open(Path path) throws IOException {
+        return new LasReader(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * Point count from the header only, without mapping the points.
+     */
+    public static long pointCount(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = header(channel);
+            return pointCount(header);
+        }
+    }
+
+    private LasReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = header(channel);
+        versionMajor = header.get(24);
+        versionMinor = header.get(25);
+        offsetToPoints = header.getInt(96) & 0xffffffffL;
+        int format = header.get(104) & 0xff;
+        if ((format & 0xc0) != 0) {
+            throw new IOException("Compressed (LAZ) point data is not supported");
+        }
+        pointFormat = format;
+        recordLength = header.getShort(105) & 0xffff;
+        pointCount = pointCount(header);
+        scaleX = header.getDouble(131);
+        scaleY = header.getDouble(139);
+        scaleZ = header.getDouble(147);
+        offsetX = header.getDouble(155);
+        offsetY = header.getDouble(163);
+        offsetZ = header.getDouble(171);
+        maxX = header.getDouble(179);
+        minX = header.getDouble(187);
+        maxY = header.getDouble(195);
+        minY = header.getDouble(203);
+        maxZ = header.getDouble(211);
+        minZ = header.getDouble(219);
+        // Formats 6-10 store the full classification byte at 16, older formats 5 bits at 15.
+        classificationOffset = pointFormat >= 6 ? 16 : 15;
+
+        recordsPerChunk = Integer.MAX_VALUE / recordLength;
+        int n = (int) ((pointCount + recordsPerChunk - 1) / recordsPerChunk);
+        chunks = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long first = i * recordsPerChunk;
+            long records = Math.min(recordsPerChunk, pointCount - first);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offsetToPoints + first * recordLength, records * recordLength);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static ByteBuffer header(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(375).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // read the whole header
+        }
+        if (header.position() < 227 || header.get(0) != 'L' || header.get(1) != 'A' || header.get(2) != 'S' || header.get(3) != 'F') {
+            throw new IOException("Not a LAS file");
+        }
+        return header;
+    }
+
+    private static long pointCount(ByteBuffer header) {
+        long legacy = header.getInt(107) & 0xffffffffL;
+        int minor = header.get(25);
+        int headerSize = header.getShort(94) & 0xffff;
+        if (minor >= 4 && headerSize >= 255) {
+            long count = header.getLong(247);
+            if (count > 0) {
+                return count;
+            }
+        }
+        return legacy;
+    }
+
+    public int rawX(long i) {
+        return chunk(i).getInt(position(i));
+    }
+
+    public int rawY(long i) {
+        return chunk(i).getInt(position(i) + 4);
+    }
+
+    public int rawZ(long i) {
+        return chunk(i).getInt(position(i) + 8);
+    }
+
+    public int classification(long i) {
+        int c = chunk(i).get(position(i) + classificationOffset) & 0xff;
+        return pointFormat >= 6 ? c : c & 0x1f;
+    }
+
+    public double x(long i) {
+        return rawX(i) * scaleX + offsetX;
+    }
+
+    public double y(long i) {
+        return rawY(i) * scaleY + offsetY;
+    }
+
+    public double z(long i) {
+        return rawZ(i) * scaleZ + offsetZ;
+    }
+
+    private MappedByteBuffer chunk(long i) {
+        return chunks[(int) (i / recordsPerChunk)];
+    }
+
+    private int position(long i) {
+        return (int) (i % recordsPerChunk) * recordLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
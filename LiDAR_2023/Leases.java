@@ -0,0 +1,308 @@
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work distribution between worker JVMs on several hosts through lease files in a
+ * shared directory (NFS or similar), without a broker or database.
+ *
+ * A worker claims a unit of work by creating {@code <name>.lease} with
+ * CREATE_NEW, which succeeds for exactly one worker. While it works, a heartbeat
+ * renews the modification time of its leases. A lease that was not renewed within
+ * the timeout belongs to a dead worker and is taken over: the stale file is moved
+ * away (a rename succeeds for one worker only) and claimed anew. Finished work gets
+ * a {@code <name>.done} marker and is not claimed again.
+ *
+ * Staleness compares the lease time with the local clock, so the hosts must be
+ * time-synchronized to well within the timeout. A worker whose lease was taken
+ * over nevertheless (e.g. its heartbeat stalled) learns it with the next
+ * heartbeat, and must check {@link #holds} before each step of its work.
+ */
+public class Leases implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Claimed {
+        void accept(String name) throws IOException, InterruptedException;
+    }
+
+    private final Path directory;
+    private final String worker;
+    private final Duration timeout;
+    // name -> token of the leases this worker holds
+    private final Map<String, String> owned = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lease-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Leases(Path directory, String worker, Duration timeout) {
+        this.directory = directory;
+        this.worker = worker;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Leases in {@code directory}, renewed every {@code heartbeatInterval} once
+     * claimed. The heartbeat starts after construction, so it never sees a
+     * half-initialized instance.
+     */
+    public static Leases open(Path directory, String worker, Duration heartbeatInterval, Duration timeout) throws IOException {
+        Files.createDirectories(directory);
+        Leases leases = new Leases(directory, worker, timeout);
+        long interval = heartbeatInterval.toMillis();
+        leases.heartbeat.scheduleWithFixedDelay(leases::renew, interval, interval, TimeUnit.MILLISECONDS);
+        return leases;
+    }
+
+    /**
+     * Host name and process id, unique among the workers.
+     */
+    public static String defaultWorker() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ManagementFactory.getRuntimeMXBean().getPid();
+    }
+
+    public String worker() {
+        return worker;
+    }
+
+    /**
+     * Tries to claim a unit of work. False if it is done, or held by a live worker.
+     */
+    public boolean claim(String name) throws IOException {
+        if (isDone(name)) {
+            return false;
+        }
+        if (create(name)) {
+            return true;
+        }
+        return takeOver(name) && create(name);
+    }
+
+    /**
+     * Claims the units of work one after the other and hands each one claimed to
+     * {@code claimed}. Units held by other workers are tried again every
+     * {@code poll} until they are done, so the work of a worker that died is taken
+     * over once its lease is stale. Returns when every unit is done or was claimed
+     * by this worker (a unit that fails here is left to another worker or run).
+     */
+    public void claimAll(Collection<String> names, Duration poll, Claimed claimed) throws IOException, InterruptedException {
+        Set<String> open = new LinkedHashSet<>(names);
+        while (true) {
+            for (Iterator<String> it = open.iterator(); it.hasNext();) {
+                String name = it.next();
+                if (isDone(name)) {
+                    it.remove();
+                } else if (claim(name)) {
+                    it.remove();
+                    claimed.accept(name);
+                }
+            }
+            if (open.isEmpty()) {
+                return;
+            }
+            err.println("-- waiting for " + open.size() + " leases held by other workers");
+            Thread.sleep(poll.toMillis());
+        }
+    }
+
+    /**
+     * Whether a unit of work was finished by any worker.
+     */
+    public boolean isDone(String name) {
+        return Files.exists(done(name));
+    }
+
+    private boolean create(String name) throws IOException {
+        String token = worker + "\t" + UUID.randomUUID() + "\t" + Instant.now() + "\n";
+        try {
+            Files.writeString(lease(name), token, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        owned.put(name, token);
+        return true;
+    }
+
+    /**
+     * Moves a stale lease out of the way. Several workers may try at once; the
+     * rename of the stale file succeeds for one of them.
+     */
+    private boolean takeOver(String name) throws IOException {
+        Path lease = lease(name);
+        try {
+            if (!stale(lease)) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            // released in the meantime
+            return true;
+        }
+        Path tombstone = directory.resolve(name + ".stale." + worker + "." + UUID.randomUUID());
+        try {
+            Files.move(lease, tombstone, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // another worker was faster
+            return false;
+        }
+        try {
+            if (!stale(tombstone)) {
+                // Renewed right before the move: put it back. A link fails instead of replacing
+                // a lease that was created in the meantime (by the owner, or claimed by another
+                // worker, in which case the owner finds it lost with its next heartbeat).
+                try {
+                    Files.createLink(lease, tombstone);
+                } catch (FileAlreadyExistsException e) {
+                    // recreated in the meantime
+                }
+                return false;
+            }
+            err.println("-- lease taken over from " + Files.readString(tombstone).split("\t")[0] + ": " + name);
+            return true;
+        } finally {
+            Files.deleteIfExists(tombstone);
+        }
+    }
+
+    private boolean stale(Path lease) throws IOException {
+        FileTime renewed = Files.getLastModifiedTime(lease);
+        return Duration.between(renewed.toInstant(), Instant.now()).compareTo(timeout) > 0;
+    }
+
+    /**
+     * Renews every lease that is still ours. A lease that is gone is recreated if
+     * nobody else claimed or finished it; a lease that now belongs to another worker
+     * is dropped.
+     */
+    private void renew() {
+        for (Map.Entry<String, String> entry : owned.entrySet()) {
+            String name = entry.getKey();
+            Path lease = lease(name);
+            try {
+                String content;
+                try {
+                    content = Files.readString(lease);
+                } catch (NoSuchFileException e) {
+                    content = null;
+                }
+                if (entry.getValue().equals(content)) {
+                    Files.setLastModifiedTime(lease, FileTime.from(Instant.now()));
+                } else if (content == null && !isDone(name) && reclaim(name, entry.getValue())) {
+                    continue;
+                } else {
+                    err.println("-- lease lost to " + (content == null ? "?" : content.split("\t")[0]) + ": " + name);
+                    owned.remove(name);
+                }
+            } catch (IOException e) {
+                err.println("-- lease not renewed: " + name + ": " + e);
+            }
+        }
+    }
+
+    private boolean reclaim(String name, String token) throws IOException {
+        try {
+            Files.writeString(lease(name), token, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether this worker still holds the lease. Reads the lease file, so a lease
+     * taken over while this worker stalled is noticed before the next heartbeat.
+     */
+    public boolean holds(String name) {
+        String token = owned.get(name);
+        if (token == null) {
+            return false;
+        }
+        String content;
+        try {
+            content = Files.readString(lease(name));
+        } catch (NoSuchFileException e) {
+            // Taken over and finished by another worker, or only moved for the moment (see
+            // takeOver), then the heartbeat decides.
+            content = isDone(name) ? "?" : null;
+        } catch (IOException e) {
+            content = null;
+        }
+        if (content == null) {
+            return owned.containsKey(name);
+        }
+        if (token.equals(content)) {
+            return true;
+        }
+        if (owned.remove(name, token)) {
+            err.println("-- lease lost to " + content.split("\t")[0] + ": " + name);
+        }
+        return false;
+    }
+
+    /**
+     * Gives a lease back. With {@code done} the work is marked finished for all
+     * workers (only if the lease was still ours); otherwise it can be claimed again.
+     */
+    public void release(String name, boolean done) throws IOException {
+        String token = owned.remove(name);
+        if (token == null) {
+            return;
+        }
+        try {
+            if (!token.equals(Files.readString(lease(name)))) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            // taken over and released by another worker
+            return;
+        }
+        if (done) {
+            Files.writeString(done(name), worker + "\t" + Instant.now() + "\n", StandardCharsets.UTF_8);
+        }
+        Files.delete(lease(name));
+    }
+
+    private Path lease(String name) {
+        return directory.resolve(name + ".lease");
+    }
+
+    private Path done(String name) {
+        return directory.resolve(name + ".done");
+    }
+
+    @Override
+    public void close() throws IOException {
+        heartbeat.shutdownNow();
+        for (String name : owned.keySet()) {
+            release(name, false);
+        }
+    }
+}
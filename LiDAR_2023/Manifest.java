@@ -0,0 +1,251 @@
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of which stages each tile finished, with size and SHA-256 of
+ * every output. A stage is recorded as done only after it returned successfully,
+ * so outputs of a stage that was interrupted never count as done. Each record is
+ * forced to disk before the next stage starts.
+ *
+ * One line per event, tab separated:
+ * {@code timestamp  done|failed|invalidated  stage  tile  path|size|sha256;... (or the error message)}
+ *
+ * An {@code invalidated} line cancels the done records of its stage and the
+ * stages after it until they are recorded as done again, also for later runs.
+ */
+public class Manifest implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private record Output(String path, long size, String sha256) {}
+
+    private final Path file;
+    private final List<String> stages;
+    private final FileChannel channel;
+    // tile -> stage -> outputs of the last successful run
+    private final Map<String, Map<String, List<Output>>> done = new HashMap<>();
+    // tile -> last error, for tiles that did not finish
+    private final Map<String, String> failed = new LinkedHashMap<>();
+    // Also compare checksums (not only sizes) when deciding whether a stage can be skipped.
+    private final boolean verifyChecksums = Boolean.getBoolean("manifest.verify");
+
+    public Manifest(Path file, List<String> stages) throws IOException {
+        this.file = file;
+        this.stages = List.copyOf(stages);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                replay(line);
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void replay(String line) {
+        String[] parts = line.split("\t", -1);
+        // A crash while appending leaves a truncated last line. It is ignored.
+        if (parts.length != 5) {
+            return;
+        }
+        String status = parts[1];
+        String stage = parts[2];
+        String tile = parts[3];
+        if (status.equals("done")) {
+            List<Output> outputs = new ArrayList<>();
+            if (parts[4].length() > 0) {
+                for (String o : parts[4].split(";")) {
+                    String[] f = o.split("\\|");
+                    if (f.length != 3) {
+                        return;
+                    }
+                    outputs.add(new Output(f[0], Long.parseLong(f[1]), f[2]));
+                }
+            }
+            done.computeIfAbsent(tile, k -> new HashMap<>()).put(stage, outputs);
+            if (stage.equals(stages.get(stages.size() - 1))) {
+                failed.remove(tile);
+            }
+        } else if (status.equals("failed")) {
+            failed.put(tile, stage + ": " + parts[4]);
+        } else if (status.equals("invalidated") && stages.contains(stage)) {
+            forget(tile, stage);
+        }
+    }
+
+    /**
+     * Returns the stages that still have to run for a tile. Working backwards, a
+     * stage is skipped if it is recorded as done and its outputs are unchanged on
+     * disk, or if the stage after it is skipped (its outputs were consumed, e.g. a
+     * deleted zip).
+     */
+    public synchronized Set<String> pending(String tile, Map<String, List<Path>> outputs) throws IOException {
+        Map<String, List<Output>> tileDone = done.getOrDefault(tile, Map.of());
+        boolean[] skip = new boolean[stages.size()];
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            List<Output> recorded = tileDone.get(stages.get(i));
+            if (recorded == null) {
+                continue;
+            }
+            boolean nextSkipped = i + 1 < stages.size() && skip[i + 1];
+            skip[i] = nextSkipped || unchanged(recorded, outputs.getOrDefault(stages.get(i), List.of()));
+        }
+        Set<String> pending = new LinkedHashSet<>();
+        for (int i = 0; i < stages.size(); i++) {
+            if (!skip[i]) {
+                pending.add(stages.get(i));
+            }
+        }
+        // Once a stage runs again, everything after it runs again too.
+        if (!pending.isEmpty()) {
+            pending.addAll(stages.subList(stages.indexOf(pending.iterator().next()), stages.size()));
+        }
+        return pending;
+    }
+
+    /**
+     * Forgets that a tile finished {@code stage} and the stages after it, so they
+     * run again although their outputs are unchanged (e.g. the source data was
+     * corrected, or a neighbour of the tile was). The invalidation is recorded, so
+     * a run that is interrupted before the stages are done again still runs them
+     * after a restart without {@code -Dchanged}.
+     */
+    public synchronized void invalidate(String tile, String stage) throws IOException {
+        if (forget(tile, stage)) {
+            append("invalidated", stage, tile, "");
+        }
+    }
+
+    private boolean forget(String tile, String stage) {
+        Map<String, List<Output>> tileDone = done.get(tile);
+        return tileDone != null && tileDone.keySet().removeAll(stages.subList(stages.indexOf(stage), stages.size()));
+    }
+
+    private boolean unchanged(List<Output> recorded, List<Path> expected) throws IOException {
+        if (recorded.size() != expected.size()) {
+            return false;
+        }
+        for (Output output : recorded) {
+            Path path = Paths.get(output.path());
+            if (!expected.contains(path) || !Files.exists(path) || Files.size(path) != output.size()) {
+                return false;
+            }
+            if (verifyChecksums && !sha256(path).equals(output.sha256())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a stage of a tile unless it is not pending, and records the result.
+     */
+    public void run(String tile, String stage, Set<String> pending, List<Path> outputs, Step step) throws Exception {
+        if (!pending.contains(stage)) {
+            err.println("-- skip " + stage + " (done): " + tile);
+            return;
+        }
+        try {
+            step.run();
+        } catch (Exception e) {
+            failed(tile, stage, e);
+            throw e;
+        }
+        done(tile, stage, outputs);
+    }
+
+    public void done(String tile, String stage, List<Path> outputs) throws IOException {
+        List<Output> recorded = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (Path path : outputs) {
+            Output output = new Output(path.toString(), Files.size(path), sha256(path));
+            recorded.add(output);
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(output.path()).append('|').append(output.size()).append('|').append(output.sha256());
+        }
+        synchronized (this) {
+            append("done", stage, tile, sb.toString());
+            done.computeIfAbsent(tile, k -> new HashMap<>()).put(stage, recorded);
+            if (stage.equals(stages.get(stages.size() - 1))) {
+                failed.remove(tile);
+            }
+        }
+    }
+
+    public synchronized void failed(String tile, String stage, Exception e) throws IOException {
+        String message = String.valueOf(e.getMessage()).replaceAll("[\t\r\n]", " ");
+        append("failed", stage, tile, message);
+        failed.put(tile, stage + ": " + message);
+    }
+
+    private void append(String status, String stage, String tile, String details) throws IOException {
+        String line = Instant.now() + "\t" + status + "\t" + stage + "\t" + tile + "\t" + details + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Writes the tiles that failed and did not finish later as a CSV that can be
+     * passed to the next run.
+     */
+    public synchronized Path writeRetryList() throws IOException {
+        Path retry = file.resolveSibling(file.getFileName().toString().replaceFirst("\\.tsv$", "") + "-retry.csv");
+        Files.write(retry, failed.keySet(), StandardCharsets.UTF_8);
+        for (Map.Entry<String, String> entry : failed.entrySet()) {
+            err.println("-- failed: " + entry.getKey() + " (" + entry.getValue() + ")");
+        }
+        err.println("-- " + failed.size() + " failed tiles written to " + retry);
+        return retry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
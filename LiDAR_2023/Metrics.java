@@ -0,0 +1,326 @@
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing and resource use of every stage of every tile.
+ *
+ * Each finished stage is appended as one JSON line to the report, and a
+ * Prometheus textfile (node_exporter textfile collector) with the totals per stage
+ * is rewritten. {@link #summary()} prints percentiles per stage and the slowest
+ * tiles at the end of a run.
+ *
+ * Subprocesses started while a stage runs are registered with {@link #track} and
+ * polled in the background for their resident set size (/proc, Linux only), so
+ * the peak RSS of PDAL or GDAL ends up in the sample of the stage. Long-lived
+ * helpers that serve many stages are registered with {@link #trackShared}.
+ */
+public class Metrics implements AutoCloseable {
+
+    /**
+     * One stage of one tile.
+     */
+    public static class Sample {
+        final String tile;
+        final String stage;
+        final Instant start = Instant.now();
+        final long startNanos = nanoTime();
+        final long queueWaitNanos;
+        final long bytesIn;
+        long admissionWaitNanos;
+        long wallNanos;
+        long bytesOut;
+        String status;
+        Integer exitCode;
+        volatile long peakRssBytes = -1;
+
+        Sample(String tile, String stage, long queueWaitNanos, long bytesIn) {
+            this.tile = tile;
+            this.stage = stage;
+            this.queueWaitNanos = queueWaitNanos;
+            this.bytesIn = bytesIn;
+        }
+
+        /**
+         * Time spent waiting for the resource budget, not counted as work.
+         */
+        public void admissionWait(long nanos) {
+            admissionWaitNanos += nanos;
+        }
+
+        String json() {
+            return "{\"tile\":\"" + escape(tile) + "\",\"stage\":\"" + escape(stage) + "\",\"status\":\"" + status
+                    + "\",\"start\":\"" + start + "\",\"wallMs\":" + millis(wallNanos)
+                    + ",\"queueWaitMs\":" + millis(queueWaitNanos) + ",\"admissionWaitMs\":" + millis(admissionWaitNanos)
+                    + ",\"bytesIn\":" + bytesIn + ",\"bytesOut\":" + bytesOut
+                    + ",\"exitCode\":" + exitCode + ",\"peakRssBytes\":" + (peakRssBytes < 0 ? "null" : peakRssBytes) + "}";
+        }
+    }
+
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+    // Sample of a tracked process; shared: a helper whose VmHWM covers earlier requests.
+    private record Tracked(Sample sample, boolean shared) {
+    }
+
+    private static final Map<Process, Tracked> TRACKED = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-rss");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        POLLER.scheduleWithFixedDelay(Metrics::poll, 200, 200, TimeUnit.MILLISECONDS);
+    }
+
+    private final String job;
+    private final Path prometheus;
+    private final FileChannel report;
+    private final List<Sample> samples = new ArrayList<>();
+    // Running totals per stage for the Prometheus file: seconds, queue wait seconds,
+    // admission wait seconds, bytes in, bytes out, max peak rss.
+    private final Map<String, double[]> totals = new LinkedHashMap<>();
+    private final Map<String, Long> runs = new LinkedHashMap<>();
+
+    public Metrics(String job, Path report, Path prometheus) throws IOException {
+        this.job = job;
+        this.prometheus = prometheus;
+        this.report = FileChannel.open(report, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Starts the sample of a stage on the calling thread.
+     */
+    public Sample start(String tile, String stage, long queueWaitNanos, long bytesIn) {
+        Sample sample = new Sample(tile, stage, queueWaitNanos, bytesIn);
+        CURRENT.set(sample);
+        return sample;
+    }
+
+    /**
+     * Sample of the stage running on the calling thread, or null.
+     */
+    public static Sample current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Records a finished (done, skipped or failed) stage.
+     */
+    public void finish(Sample sample, String status, long bytesOut) throws IOException {
+        CURRENT.remove();
+        sample.wallNanos = nanoTime() - sample.startNanos - sample.admissionWaitNanos;
+        sample.status = status;
+        sample.bytesOut = bytesOut;
+        synchronized (this) {
+            samples.add(sample);
+            double[] t = totals.computeIfAbsent(sample.stage, k -> new double[6]);
+            t[0] += sample.wallNanos / 1e9;
+            t[1] += sample.queueWaitNanos / 1e9;
+            t[2] += sample.admissionWaitNanos / 1e9;
+            t[3] += sample.bytesIn;
+            t[4] += sample.bytesOut;
+            t[5] = Math.max(t[5], sample.peakRssBytes);
+            runs.merge(sample.stage + "\t" + sample.status, 1L, Long::sum);
+            ByteBuffer line = ByteBuffer.wrap((sample.json() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                report.write(line);
+            }
+            writePrometheus();
+        }
+    }
+
+    /**
+     * Polls the resident set size of a subprocess (and its children) for the
+     * sample of the current stage until {@link #exited} is called.
+     */
+    public static void track(Process process) {
+        track(process, false);
+    }
+
+    /**
+     * Like {@link #track}, for a long-lived process that handles one request of the
+     * current stage. Its lifetime peak (VmHWM) belongs to earlier requests too, so
+     * only the resident set size seen while the request runs is recorded.
+     */
+    public static void trackShared(Process process) {
+        track(process, true);
+    }
+
+    private static void track(Process process, boolean shared) {
+        Sample sample = CURRENT.get();
+        if (sample != null) {
+            TRACKED.put(process, new Tracked(sample, shared));
+        }
+    }
+
+    public static void exited(Process process, int exitCode) {
+        Tracked tracked = TRACKED.remove(process);
+        if (tracked == null) {
+            return;
+        }
+        Sample sample = tracked.sample();
+        // Several commands in one stage: keep the first failure, otherwise the last code.
+        if (sample.exitCode == null || sample.exitCode == 0) {
+            sample.exitCode = exitCode;
+        }
+    }
+
+    private static void poll() {
+        for (Map.Entry<Process, Tracked> entry : TRACKED.entrySet()) {
+            ProcessHandle root = entry.getKey().toHandle();
+            Tracked tracked = entry.getValue();
+            // Peak of the process itself, or the current total of its process tree (gdal_*.py start children).
+            long peak = tracked.shared() ? -1 : status(root.pid(), "VmHWM:");
+            long tree = status(root.pid(), "VmRSS:");
+            for (ProcessHandle child : root.descendants().toList()) {
+                tree += Math.max(0, status(child.pid(), "VmRSS:"));
+            }
+            Sample sample = tracked.sample();
+            sample.peakRssBytes = Math.max(sample.peakRssBytes, Math.max(peak, tree));
+        }
+    }
+
+    private static long status(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) << 10;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // exited in the meantime, or no /proc
+        }
+        return -1;
+    }
+
+    /**
+     * Totals per stage, rewritten atomically so the collector never sees half a file.
+     * Called with the lock held, so it only formats the running totals.
+     */
+    private void writePrometheus() throws IOException {
+        if (prometheus == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE tile_stage_runs_total counter\n");
+        for (Map.Entry<String, Long> e : runs.entrySet()) {
+            String[] k = e.getKey().split("\t");
+            sb.append("tile_stage_runs_total{job=\"").append(job).append("\",stage=\"").append(k[0])
+                    .append("\",status=\"").append(k[1]).append("\"} ").append(e.getValue()).append('\n');
+        }
+        String[][] metrics = {
+            { "tile_stage_seconds_total", "counter" },
+            { "tile_stage_queue_wait_seconds_total", "counter" },
+            { "tile_stage_admission_wait_seconds_total", "counter" },
+            { "tile_stage_bytes_in_total", "counter" },
+            { "tile_stage_bytes_out_total", "counter" },
+            { "tile_stage_peak_rss_bytes", "gauge" },
+        };
+        for (int m = 0; m < metrics.length; m++) {
+            sb.append("# TYPE ").append(metrics[m][0]).append(' ').append(metrics[m][1]).append('\n');
+            for (Map.Entry<String, double[]> e : totals.entrySet()) {
+                sb.append(metrics[m][0]).append("{job=\"").append(job).append("\",stage=\"").append(e.getKey()).append("\"} ")
+                        .append(String.format(Locale.ROOT, "%.3f", e.getValue()[m])).append('\n');
+            }
+        }
+        Path tmp = prometheus.resolveSibling(prometheus.getFileName() + ".part");
+        Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+        Files.move(tmp, prometheus, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Percentiles of the wall time per stage and the slowest tiles, skipped stages
+     * not counted.
+     */
+    public synchronized void summary() {
+        Map<String, List<Sample>> byStage = new LinkedHashMap<>();
+        for (Sample s : samples) {
+            if (!s.status.equals("skipped")) {
+                byStage.computeIfAbsent(s.stage, k -> new ArrayList<>()).add(s);
+            }
+        }
+        err.println("-- stage          n     total s     p50 s     p90 s     p99 s     max s  queue s  failed");
+        for (Map.Entry<String, List<Sample>> e : byStage.entrySet()) {
+            List<Sample> list = e.getValue();
+            long[] wall = list.stream().mapToLong(s -> s.wallNanos).sorted().toArray();
+            double total = list.stream().mapToLong(s -> s.wallNanos).sum() / 1e9;
+            double queue = list.stream().mapToLong(s -> s.queueWaitNanos).sum() / 1e9;
+            long failed = list.stream().filter(s -> s.status.equals("failed")).count();
+            err.println(String.format(Locale.ROOT, "-- %-10s %5d %11.1f %9.1f %9.1f %9.1f %9.1f %8.1f %7d",
+                    e.getKey(), wall.length, total, percentile(wall, 0.5), percentile(wall, 0.9), percentile(wall, 0.99),
+                    wall[wall.length - 1] / 1e9, queue, failed));
+        }
+
+        int slowest = Integer.getInteger("metrics.slowest", 10);
+        Map<String, Long> perTile = new LinkedHashMap<>();
+        for (Sample s : samples) {
+            perTile.merge(s.tile, s.wallNanos, Long::sum);
+        }
+        err.println("-- slowest tiles:");
+        perTile.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(slowest)
+                .forEach(e -> err.println(String.format(Locale.ROOT, "-- %9.1f s  %s  (%s)", e.getValue() / 1e9, e.getKey(), slowestStage(e.getKey()))));
+    }
+
+    private String slowestStage(String tile) {
+        return samples.stream()
+                .filter(s -> s.tile.equals(tile))
+                .max(Comparator.comparingLong(s -> s.wallNanos))
+                .map(s -> s.stage + " " + String.format(Locale.ROOT, "%.1f s", s.wallNanos / 1e9))
+                .orElse("");
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e9;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Sum of the sizes of the files that exist.
+     */
+    public static long size(List<Path> paths) {
+        long size = 0;
+        for (Path path : paths) {
+            try {
+                size += Files.size(path);
+            } catch (IOException e) {
+                // not there (yet or any more)
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        report.close();
+    }
+}
@@ -0,0 +1,281 @@
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * National mosaic of the tile products as a VRT with an overview pyramid.
+ *
+ * Level 0 are the 1 km tiles themselves. Level L has 2^L times the pixel size and
+ * is stored as blocks of the same pixel size as a tile, each covering 2^L x 2^L km
+ * ({@code <root>/<product>/<L>/<E>_<N>.tif}, E/N in units of 2^L km). A block of
+ * level L is made of the four blocks of level L-1 below it, each downsampled into
+ * one quadrant.
+ *
+ * Tiles that were (re)produced are recorded in a dirty list; {@link #flush} then
+ * updates only the quadrants above them, level by level with the blocks of a level
+ * in parallel, and rewrites the VRTs. The dirty list is a file, so tiles recorded
+ * before a crash are picked up by the next flush. Processes that share a mosaic
+ * need their own dirty list and must not flush at the same time.
+ */
+public class Mosaic {
+
+    /**
+     * One product: its tiles are {@code <directory>/<prefix><E>_<N>.tif}.
+     */
+    public record Product(String name, Path directory, String prefix, GeoTiff.SampleType type, float noData) {
+
+        Path tile(long key) {
+            return directory.resolve(prefix + Halo.e(key) + "_" + Halo.n(key) + ".tif");
+        }
+    }
+
+    private static final Pattern TILE_FILE = Pattern.compile("(\\d+)_(\\d+)\\.tif");
+
+    private final Path root;
+    private final List<Product> products;
+    private final int levels;
+    private final int tilePixels;
+    private final double resolution;
+    private final ForkJoinPool pool;
+    private final Path dirtyFile;
+    private final Set<Long> dirty = new TreeSet<>();
+
+    public Mosaic(Path root, Path dirtyFile, List<Product> products, int levels, int tilePixels, double resolution, int threads) throws IOException {
+        this.root = root;
+        this.products = products;
+        this.levels = levels;
+        this.tilePixels = tilePixels;
+        this.resolution = resolution;
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        Files.createDirectories(root);
+        this.dirtyFile = dirtyFile;
+        if (Files.exists(dirtyFile)) {
+            for (String line : Files.readAllLines(dirtyFile)) {
+                Matcher m = TILE_FILE.matcher(line.trim() + ".tif");
+                if (m.matches()) {
+                    dirty.add(Halo.key(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a (re)produced tile. Returns the number of tiles waiting for the next flush.
+     */
+    public synchronized int add(long key) throws IOException {
+        if (dirty.add(key)) {
+            Files.writeString(dirtyFile, Halo.e(key) + "_" + Halo.n(key) + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return dirty.size();
+    }
+
+    /**
+     * Updates the pyramids and VRTs of all products for the recorded tiles.
+     */
+    public synchronized void flush() throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        long start = nanoTime();
+        for (Product product : products) {
+            update(product, dirty);
+            writeVrts(product);
+        }
+        err.println(String.format(Locale.ROOT, "-- mosaic: %d tiles, %d products in %.1f s", dirty.size(), products.size(), (nanoTime() - start) / 1e9));
+        dirty.clear();
+        Files.deleteIfExists(dirtyFile);
+    }
+
+    private void update(Product product, Collection<Long> tiles) throws IOException {
+        Set<Long> changed = new TreeSet<>(tiles);
+        for (int level = 1; level <= levels; level++) {
+            Map<Long, List<Long>> parents = new HashMap<>();
+            for (long child : changed) {
+                parents.computeIfAbsent(parent(child), k -> new ArrayList<>()).add(child);
+            }
+            int l = level;
+            try {
+                pool.submit(() -> parents.entrySet().parallelStream().forEach(e -> {
+                    try {
+                        rebuild(product, l, e.getKey(), e.getValue());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                })).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof UncheckedIOException u ? u.getCause() : new IOException(e.getCause());
+            }
+            changed = new TreeSet<>(parents.keySet());
+        }
+    }
+
+    private static long parent(long key) {
+        return Halo.key(Math.floorDiv(Halo.e(key), 2), Math.floorDiv(Halo.n(key), 2));
+    }
+
+    /**
+     * Replaces the quadrants of the changed children in one block of a level.
+     */
+    private void rebuild(Product product, int level, long key, List<Long> children) throws IOException {
+        Path file = block(product, level, key);
+        Raster block;
+        if (Files.exists(file)) {
+            block = GeoTiff.read(file);
+        } else {
+            double km = 1000.0 * (1L << level);
+            block = new Raster(tilePixels, tilePixels, Halo.e(key) * km, (Halo.n(key) + 1) * km,
+                    resolution * (1L << level), product.noData());
+        }
+        int half = tilePixels / 2;
+        for (long child : children) {
+            int qx = Halo.e(child) - 2 * Halo.e(key);
+            int qy = 1 - (Halo.n(child) - 2 * Halo.n(key));
+            Path childFile = level == 1 ? product.tile(child) : block(product, level - 1, child);
+            Raster quadrant = null;
+            if (Files.exists(childFile)) {
+                Raster raster = GeoTiff.read(childFile);
+                if (raster.width != tilePixels || raster.height != tilePixels) {
+                    throw new IOException(childFile + " is " + raster.width + "x" + raster.height + ", expected " + tilePixels);
+                }
+                quadrant = GeoTiff.downsample(raster);
+            }
+            for (int y = 0; y < half; y++) {
+                int offset = (qy * half + y) * tilePixels + qx * half;
+                for (int x = 0; x < half; x++) {
+                    float v = quadrant == null ? product.noData() : quadrant.data[y * half + x];
+                    block.data[offset + x] = quadrant != null && quadrant.isNoData(v) ? product.noData() : v;
+                }
+            }
+        }
+        boolean empty = true;
+        for (float v : block.data) {
+            if (!block.isNoData(v)) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        GeoTiff.write(file, block, product.type(), false);
+    }
+
+    private Path block(Product product, int level, long key) {
+        return root.resolve(product.name()).resolve(String.valueOf(level)).resolve(Halo.e(key) + "_" + Halo.n(key) + ".tif");
+    }
+
+    /**
+     * Rewrites {@code <product>.vrt} over all tiles with one {@code <Overview>} per
+     * level. The extent is aligned to the blocks of the top level, so every level is
+     * exactly half the size of the one below.
+     */
+    private void writeVrts(Product product) throws IOException {
+        List<Long> tiles = list(product.directory(), product.prefix());
+        if (tiles.isEmpty()) {
+            return;
+        }
+        long top = 1L << levels;
+        long minE = Long.MAX_VALUE, minN = Long.MAX_VALUE, maxE = Long.MIN_VALUE, maxN = Long.MIN_VALUE;
+        for (long key : tiles) {
+            minE = Math.min(minE, Math.floorDiv(Halo.e(key), top) * top);
+            minN = Math.min(minN, Math.floorDiv(Halo.n(key), top) * top);
+            maxE = Math.max(maxE, (Math.floorDiv(Halo.e(key), top) + 1) * top);
+            maxN = Math.max(maxN, (Math.floorDiv(Halo.n(key), top) + 1) * top);
+        }
+        Path directory = root.resolve(product.name());
+        Files.createDirectories(directory);
+        for (int level = 0; level <= levels; level++) {
+            long km = 1L << level;
+            List<Long> blocks = level == 0 ? tiles : list(directory.resolve(String.valueOf(level)), "");
+            StringBuilder sources = new StringBuilder();
+            for (long key : blocks) {
+                Path file = level == 0 ? product.tile(key) : block(product, level, key);
+                long xOff = (Halo.e(key) - minE / km) * tilePixels;
+                long yOff = (maxN / km - Halo.n(key) - 1) * tilePixels;
+                sources.append(String.format(Locale.ROOT, """
+                            <ComplexSource>
+                              <SourceFilename relativeToVRT="1">%s</SourceFilename>
+                              <SourceBand>1</SourceBand>
+                              <SrcRect xOff="0" yOff="0" xSize="%d" ySize="%d"/>
+                              <DstRect xOff="%d" yOff="%d" xSize="%d" ySize="%d"/>
+                              <NODATA>%s</NODATA>
+                            </ComplexSource>
+                        """, directory.relativize(file), tilePixels, tilePixels, xOff, yOff, tilePixels, tilePixels,
+                        GeoTiff.noDataString(product.noData())));
+            }
+            if (level == 0) {
+                for (int overview = 1; overview <= levels; overview++) {
+                    sources.append(String.format(Locale.ROOT, """
+                                <Overview>
+                                  <SourceFilename relativeToVRT="1">level_%d.vrt</SourceFilename>
+                                  <SourceBand>1</SourceBand>
+                                </Overview>
+                            """, overview));
+                }
+            }
+            double pixel = resolution * km;
+            String vrt = String.format(Locale.ROOT, """
+                    <VRTDataset rasterXSize="%d" rasterYSize="%d">
+                      <SRS dataAxisToSRSAxisMapping="1,2">EPSG:2056</SRS>
+                      <GeoTransform>%.3f, %s, 0, %.3f, 0, -%s</GeoTransform>
+                      <VRTRasterBand dataType="%s" band="1">
+                        <NoDataValue>%s</NoDataValue>
+                    %s  </VRTRasterBand>
+                    </VRTDataset>
+                    """, (maxE - minE) * tilePixels / km, (maxN - minN) * tilePixels / km,
+                    minE * 1000.0, pixel, maxN * 1000.0, pixel,
+                    product.type() == GeoTiff.SampleType.BYTE ? "Byte" : "Float32",
+                    GeoTiff.noDataString(product.noData()), sources);
+            Path file = directory.resolve(level == 0 ? product.name() + ".vrt" : "level_" + level + ".vrt");
+            Path part = file.resolveSibling(file.getFileName() + ".part");
+            Files.writeString(part, vrt, StandardCharsets.UTF_8);
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static List<Long> list(Path directory, String prefix) throws IOException {
+        List<Long> keys = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return keys;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                Matcher m = TILE_FILE.matcher(name.substring(prefix.length()));
+                if (m.matches()) {
+                    keys.add(Halo.key(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))));
+                }
+            }
+        }
+        keys.sort(null);
+        return keys;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Single band float grid in LV95 (EPSG:2056) with square pixels. Row 0 is the
+ * northern edge, {@code minX}/{@code maxY} is the upper left corner of the upper
+ * left pixel.
+ */
+public class Raster {
+
+    public final int width;
+    public final int height;
+    public final double minX;
+    public final double maxY;
+    public final double resolution;
+    public final float noData;
+    public final float[] data;
+
+    public Raster(int width, int height, double minX, double maxY, double resolution, float noData, float[] data) {
+        if (data.length != width * height) {
+            throw new IllegalArgumentException("data has " + data.length + " values, expected " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.minX = minX;
+        this.maxY = maxY;
+        this.resolution = resolution;
+        this.noData = noData;
+        this.data = data;
+    }
+
+    public Raster(int width, int height, double minX, double maxY, double resolution, float noData) {
+        this(width, height, minX, maxY, resolution, noData, filled(width * height, noData));
+    }
+
+    /**
+     * Same georeferencing, new values.
+     */
+    public Raster withData(float[] data, float noData) {
+        return new Raster(width, height, minX, maxY, resolution, noData, data);
+    }
+
+    public float get(int x, int y) {
+        return data[y * width + x];
+    }
+
+    public boolean isNoData(float value) {
+        return value == noData || Float.isNaN(value);
+    }
+
+    public double maxX() {
+        return minX + width * resolution;
+    }
+
+    public double minY() {
+        return maxY - height * resolution;
+    }
+
+    static float[] filled(int length, float value) {
+        float[] data = new float[length];
+        if (value != 0f) {
+            java.util.Arrays.fill(data, value);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Bins LAS points into grids of the mean elevation per cell, like PDAL
+ * {@code writers.gdal} with {@code output_type: mean}, except that a point only
+ * counts for the cell it falls into (PDAL also spreads it to neighbouring cells
+ * within {@code radius}).
+ *
+ * The grid is split into bands of rows, one per core. The points are first
+ * bucketed by band (a counting sort of the point indices over slices of the
+ * points, both in parallel), then every band accumulates its own points on its own
+ * thread. Bands never share a cell and need no locking, and every point is read
+ * three times in total instead of once per band.
+ */
+public class Rasterizer {
+
+    public static final float NODATA = -9999f;
+
+    /**
+     * Points of the given classes. With a ground raster (on the same grid as the
+     * output) the value is the height above ground, z minus the ground cell below
+     * the point, instead of z.
+     */
+    public record Product(IntPredicate classes, Raster ground) {
+
+        public static Product of(IntPredicate classes) {
+            return new Product(classes, null);
+        }
+
+        public static Product aboveGround(IntPredicate classes, Raster ground) {
+            return new Product(classes, ground);
+        }
+    }
+
+    public static Raster[] mean(LasReader las, double minX, double maxY, int width, int height, double resolution, List<Product> products) {
+        if (las.pointCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many points for one grid: " + las.pointCount);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int bands = Math.max(1, Math.min(height, cores));
+        int[] bandOfRow = new int[height];
+        int[] fromRow = new int[bands + 1];
+        for (int band = 0; band <= bands; band++) {
+            fromRow[band] = (int) ((long) height * band / bands);
+        }
+        for (int band = 0; band < bands; band++) {
+            for (int row = fromRow[band]; row < fromRow[band + 1]; row++) {
+                bandOfRow[row] = band;
+            }
+        }
+        int slices = cores;
+        long[] fromPoint = new long[slices + 1];
+        for (int slice = 0; slice <= slices; slice++) {
+            fromPoint[slice] = las.pointCount * slice / slices;
+        }
+
+        // Points per slice and band.
+        int[][] counts = new int[slices][bands];
+        IntStream.range(0, slices).parallel().forEach(slice -> {
+            for (long i = fromPoint[slice]; i < fromPoint[slice + 1]; i++) {
+                int row = row(las, i, minX, maxY, width, height, resolution);
+                if (row >= 0) {
+                    counts[slice][bandOfRow[row]]++;
+                }
+            }
+        });
+        // Where each slice puts its points of each band, so the indices of a band stay ascending.
+        int[][] next = new int[slices][bands];
+        int[] bandStart = new int[bands + 1];
+        int total = 0;
+        for (int band = 0; band < bands; band++) {
+            bandStart[band] = total;
+            for (int slice = 0; slice < slices; slice++) {
+                next[slice][band] = total;
+                total += counts[slice][band];
+            }
+        }
+        bandStart[bands] = total;
+        int[] order = new int[total];
+        IntStream.range(0, slices).parallel().forEach(slice -> {
+            int[] position = next[slice];
+            for (long i = fromPoint[slice]; i < fromPoint[slice + 1]; i++) {
+                int row = row(las, i, minX, maxY, width, height, resolution);
+                if (row >= 0) {
+                    order[position[bandOfRow[row]]++] = (int) i;
+                }
+            }
+        });
+
+        float[][] out = new float[products.size()][width * height];
+        IntStream.range(0, bands).parallel().forEach(band ->
+                rasterizeBand(las, minX, maxY, width, resolution, products, fromRow[band], fromRow[band + 1],
+                        order, bandStart[band], bandStart[band + 1], out));
+        Raster[] rasters = new Raster[products.size()];
+        for (int p = 0; p < rasters.length; p++) {
+            rasters[p] = new Raster(width, height, minX, maxY, resolution, NODATA, out[p]);
+        }
+        return rasters;
+    }
+
+    /**
+     * Row of the cell a point falls into, -1 outside the grid.
+     */
+    private static int row(LasReader las, long i, double minX, double maxY, int width, int height, double resolution) {
+        double dy = maxY - las.y(i);
+        if (dy < 0) {
+            return -1;
+        }
+        int row = (int) (dy / resolution);
+        if (row >= height) {
+            return -1;
+        }
+        int col = (int) Math.floor((las.x(i) - minX) / resolution);
+        return col < 0 || col >= width ? -1 : row;
+    }
+
+    private static void rasterizeBand(LasReader las, double minX, double maxY, int width, double resolution,
+            List<Product> products, int fromRow, int toRow, int[] order, int from, int to, float[][] out) {
+        int cells = (toRow - fromRow) * width;
+        int n = products.size();
+        // Sums relative to a reference height keep float sums precise to well below a millimetre.
+        float[][] sums = new float[n][cells];
+        int[][] counts = new int[n][cells];
+        double[] reference = new double[n];
+        for (int p = 0; p < n; p++) {
+            reference[p] = products.get(p).ground() == null ? las.minZ : 0;
+        }
+
+        for (int k = from; k < to; k++) {
+            long i = order[k];
+            int row = (int) ((maxY - las.y(i)) / resolution);
+            int col = (int) Math.floor((las.x(i) - minX) / resolution);
+            int classification = las.classification(i);
+            int cell = (row - fromRow) * width + col;
+            double z = 0;
+            boolean zRead = false;
+            for (int p = 0; p < n; p++) {
+                Product product = products.get(p);
+                if (!product.classes().test(classification)) {
+                    continue;
+                }
+                if (!zRead) {
+                    z = las.z(i);
+                    zRead = true;
+                }
+                double value = z - reference[p];
+                if (product.ground() != null) {
+                    Raster ground = product.ground();
+                    float g = ground.data[row * width + col];
+                    if (ground.isNoData(g)) {
+                        continue;
+                    }
+                    value -= g;
+                }
+                sums[p][cell] += (float) value;
+                counts[p][cell]++;
+            }
+        }
+
+        for (int p = 0; p < n; p++) {
+            int offset = fromRow * width;
+            for (int c = 0; c < cells; c++) {
+                out[p][offset + c] = counts[p][c] == 0 ? NODATA : (float) (sums[p][c] / counts[p][c] + reference[p]);
+            }
+        }
+    }
+}
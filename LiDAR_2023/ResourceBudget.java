@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Admission control for tiles. The budget is the cores and memory of the host,
+ * bounded by the cgroup limits of the container it runs in. Every tile reserves
+ * its estimated cost before the heavy stages and gives it back when it is done,
+ * so dense tiles run fewer at a time and sparse tiles more.
+ *
+ * Waiting tiles are admitted in arrival order: a large tile is not starved by a
+ * stream of small ones. A tile that is larger than the whole budget is admitted
+ * alone.
+ */
+public class ResourceBudget {
+
+    public record Cost(int cores, long memory) {}
+
+    public final int cores;
+    public final long memory;
+
+    private int usedCores;
+    private long usedMemory;
+    private final Deque<Object> waiting = new ArrayDeque<>();
+
+    public ResourceBudget(int cores, long memory) {
+        this.cores = Math.max(1, cores);
+        this.memory = Math.max(1, memory);
+    }
+
+    /**
+     * Cores and memory of this host or container. {@code -Dbudget.cores} and
+     * {@code -Dbudget.memory.mb} override the detected values;
+     * {@code -Dbudget.memory.fraction} (default 0.8) of the detected memory is
+     * used, leaving room for the page cache and the rest of the system.
+     */
+    public static ResourceBudget detect() {
+        // availableProcessors() already honours the cgroup CPU quota.
+        int cores = Integer.getInteger("budget.cores", Runtime.getRuntime().availableProcessors());
+        Long memoryMb = Long.getLong("budget.memory.mb");
+        long memory;
+        if (memoryMb != null) {
+            memory = memoryMb << 20;
+        } else {
+            double fraction = Double.parseDouble(System.getProperty("budget.memory.fraction", "0.8"));
+            memory = (long) (availableMemory() * fraction);
+        }
+        return new ResourceBudget(cores, memory);
+    }
+
+    /**
+     * Same budget with the memory capped, e.g. at the JVM heap for work that runs in the JVM.
+     */
+    public ResourceBudget limitMemory(long max) {
+        return new ResourceBudget(cores, Math.min(memory, max));
+    }
+
+    /**
+     * Memory that can be used: the smallest of the cgroup limit (v2 or v1, minus
+     * what the cgroup already uses) and MemAvailable of the host. Falls back to
+     * the free memory reported by the JVM where /proc and /sys are missing (macOS).
+     */
+    static long availableMemory() {
+        long available = Long.MAX_VALUE;
+        long v2 = readLimit(Paths.get("/sys/fs/cgroup/memory.max"));
+        if (v2 > 0) {
+            available = Math.min(available, v2 - Math.max(0, readLimit(Paths.get("/sys/fs/cgroup/memory.current"))));
+        }
+        long v1 = readLimit(Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes"));
+        if (v1 > 0) {
+            available = Math.min(available, v1 - Math.max(0, readLimit(Paths.get("/sys/fs/cgroup/memory/memory.usage_in_bytes"))));
+        }
+        long meminfo = memAvailable(Paths.get("/proc/meminfo"));
+        if (meminfo > 0) {
+            available = Math.min(available, meminfo);
+        }
+        if (available == Long.MAX_VALUE) {
+            if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+                available = os.getFreeMemorySize();
+            } else {
+                available = Runtime.getRuntime().maxMemory();
+            }
+        }
+        return Math.max(0, available);
+    }
+
+    /**
+     * A cgroup limit or counter in bytes, -1 if the file is missing or the limit is
+     * "max". cgroup v1 reports "no limit" as a huge number, which is treated the same.
+     */
+    private static long readLimit(Path file) {
+        try {
+            String value = Files.readString(file).trim();
+            if (value.equals("max")) {
+                return -1;
+            }
+            long limit = Long.parseLong(value);
+            return limit >= Long.MAX_VALUE / 2 ? -1 : limit;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long memAvailable(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file);
+            for (String line : lines) {
+                if (line.startsWith("MemAvailable:")) {
+                    // "MemAvailable:   12345678 kB"
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) << 10;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Blocks until the cost fits into the budget and reserves it. The reservation
+     * must be closed when the work is done or has failed.
+     */
+    public Reservation acquire(Cost cost) throws InterruptedException {
+        Cost clamped = new Cost(Math.min(Math.max(0, cost.cores()), cores), Math.min(Math.max(0, cost.memory()), memory));
+        Object ticket = new Object();
+        synchronized (this) {
+            waiting.addLast(ticket);
+            try {
+                while (waiting.peekFirst() != ticket || !fits(clamped)) {
+                    wait();
+                }
+            } finally {
+                waiting.remove(ticket);
+                notifyAll();
+            }
+            usedCores += clamped.cores();
+            usedMemory += clamped.memory();
+        }
+        return new Reservation(clamped);
+    }
+
+    private boolean fits(Cost cost) {
+        return usedCores + cost.cores() <= cores && usedMemory + cost.memory() <= memory;
+    }
+
+    private synchronized void release(Cost cost) {
+        usedCores -= cost.cores();
+        usedMemory -= cost.memory();
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return cores + " cores, " + (memory >> 20) + " MB";
+    }
+
+    /**
+     * Reserved part of the budget. Closing it more than once has no effect.
+     */
+    public class Reservation implements AutoCloseable {
+        private final Cost cost;
+        private boolean released;
+
+        private Reservation(Cost cost) {
+            this.cost = cost;
+        }
+
+        public Cost cost() {
+            return cost;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ResourceBudget.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(cost);
+        }
+    }
+}
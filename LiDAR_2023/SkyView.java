@@ -0,0 +1,229 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Sky view factor and horizon angles in the JVM, following rvt-py
+ * ({@code rvt.vis.sky_view_factor}): along each of n directions the highest
+ * elevation angle within the search radius is the horizon, and the sky view
+ * factor is {@code 1 - mean(sin(max(horizon, 0)))} (1 on a plain, towards 0 in a
+ * narrow street or under a tree crown). Rays leaving the raster end at the edge;
+ * nodata pixels along a ray do not block.
+ *
+ * The pixel offsets of every ray are computed once per raster. For a given
+ * direction and step the offset is the same for all pixels of a row, so rows are
+ * processed with the Vector API along x. Rows are split into fork/join tasks.
+ */
+public class SkyView {
+
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public static final float SVF_NODATA = -9999f;
+    public static final float BYTE_NODATA = 0f;
+
+    private static final int ROWS_PER_TASK = 8;
+
+    /**
+     * @param directions number of directions, evenly spaced from north
+     * @param radius search radius in metres
+     * @param exaggeration vertical exaggeration (rvt {@code ve_factor})
+     */
+    public record Params(int directions, double radius, double exaggeration) {
+
+        /**
+         * rvt defaults, {@code --svf-n-dir 16 --svf-r-max 10}: the radius is 10
+         * pixels, 2.5 m on the 0.25 m DSM.
+         */
+        public static Params standard(double resolution) {
+            return new Params(16, 10 * resolution, 1);
+        }
+    }
+
+    /**
+     * Pixel steps of the rays: for ray {@code d}, {@code dx/dy[start[d] .. start[d + 1]]}
+     * and the factor that turns a height difference into the tangent of the angle.
+     */
+    record Rays(int[] start, int[] dx, int[] dy, float[] tangent) {
+
+        static Rays of(double[] azimuths, double radius, double resolution, double exaggeration) {
+            int steps = Math.max(1, (int) Math.round(radius / resolution));
+            int[] start = new int[azimuths.length + 1];
+            int[] dx = new int[azimuths.length * steps];
+            int[] dy = new int[azimuths.length * steps];
+            float[] tangent = new float[azimuths.length * steps];
+            int n = 0;
+            for (int d = 0; d < azimuths.length; d++) {
+                start[d] = n;
+                double az = Math.toRadians(azimuths[d]);
+                int lastX = 0;
+                int lastY = 0;
+                for (int r = 1; r <= steps; r++) {
+                    // Row 0 is north: north is -y.
+                    int x = (int) Math.round(r * Math.sin(az));
+                    int y = (int) Math.round(-r * Math.cos(az));
+                    if (x == lastX && y == lastY) {
+                        continue;
+                    }
+                    dx[n] = x;
+                    dy[n] = y;
+                    tangent[n] = (float) (exaggeration / (Math.hypot(x, y) * resolution));
+                    n++;
+                    lastX = x;
+                    lastY = y;
+                }
+            }
+            start[azimuths.length] = n;
+            return new Rays(start, dx, dy, tangent);
+        }
+
+        int count() {
+            return start.length - 1;
+        }
+    }
+
+    /**
+     * Sky view factor 0..1, {@link #SVF_NODATA} where the DEM is nodata.
+     */
+    public static Raster svf(Raster dem, Params params) {
+        double[] azimuths = new double[params.directions()];
+        for (int d = 0; d < azimuths.length; d++) {
+            azimuths[d] = 360.0 * d / azimuths.length;
+        }
+        Rays rays = Rays.of(azimuths, params.radius(), dem.resolution, params.exaggeration());
+        float[] out = new float[dem.width * dem.height];
+        ForkJoinPool.commonPool().invoke(new Rows(dem, rays, true, out, 0, dem.height));
+        return dem.withData(out, SVF_NODATA);
+    }
+
+    /**
+     * Elevation angle of the horizon in degrees (0 if nothing rises above the pixel)
+     * towards one azimuth, {@link #SVF_NODATA} where the DEM is nodata.
+     */
+    public static Raster horizon(Raster dem, double azimuth, double radius, double exaggeration) {
+        Rays rays = Rays.of(new double[] { azimuth }, radius, dem.resolution, exaggeration);
+        float[] out = new float[dem.width * dem.height];
+        ForkJoinPool.commonPool().invoke(new Rows(dem, rays, false, out, 0, dem.height));
+        return dem.withData(out, SVF_NODATA);
+    }
+
+    /**
+     * 8-bit sky view factor like the rvt batch script: {@code round(svf * 255)}, at
+     * least 1, with 0 as nodata.
+     */
+    public static Raster toByte(Raster svf) {
+        float[] out = new float[svf.data.length];
+        for (int i = 0; i < out.length; i++) {
+            float v = svf.data[i];
+            out[i] = svf.isNoData(v) ? BYTE_NODATA : Math.max(1, Math.round(Math.min(1, Math.max(0, v)) * 255));
+        }
+        return svf.withData(out, BYTE_NODATA);
+    }
+
+    private static class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Fork/join tasks are never serialized.
+        private final transient Raster dem;
+        private final transient Rays rays;
+        private final boolean svf;
+        private final float[] out;
+        private final int from;
+        private final int to;
+
+        Rows(Raster dem, Rays rays, boolean svf, float[] out, int from, int to) {
+            this.dem = dem;
+            this.rays = rays;
+            this.svf = svf;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Rows(dem, rays, svf, out, from, mid), new Rows(dem, rays, svf, out, mid, to));
+                return;
+            }
+            float[] maxTangent = new float[dem.width];
+            float[] sum = new float[dem.width];
+            for (int y = from; y < to; y++) {
+                row(y, maxTangent, sum);
+            }
+        }
+
+        private void row(int y, float[] maxTangent, float[] sum) {
+            int w = dem.width;
+            Arrays.fill(sum, 0f);
+            for (int d = 0; d < rays.count(); d++) {
+                Arrays.fill(maxTangent, 0f);
+                for (int s = rays.start()[d]; s < rays.start()[d + 1]; s++) {
+                    step(y, rays.dx()[s], rays.dy()[s], rays.tangent()[s], maxTangent);
+                }
+                if (!svf) {
+                    break;
+                }
+                int x = 0;
+                for (int bound = SPECIES.loopBound(w); x < bound; x += SPECIES.length()) {
+                    FloatVector t = FloatVector.fromArray(SPECIES, maxTangent, x);
+                    // sin(atan(t))
+                    t.div(t.mul(t).add(1f).lanewise(VectorOperators.SQRT))
+                            .add(FloatVector.fromArray(SPECIES, sum, x))
+                            .intoArray(sum, x);
+                }
+                for (; x < w; x++) {
+                    float t = maxTangent[x];
+                    sum[x] += (float) (t / Math.sqrt(1 + t * t));
+                }
+            }
+            int offset = y * w;
+            float n = rays.count();
+            for (int x = 0; x < w; x++) {
+                if (dem.isNoData(dem.data[offset + x])) {
+                    out[offset + x] = SVF_NODATA;
+                } else if (svf) {
+                    out[offset + x] = 1 - sum[x] / n;
+                } else {
+                    out[offset + x] = (float) Math.toDegrees(Math.atan(maxTangent[x]));
+                }
+            }
+        }
+
+        /**
+         * One step of a ray for all pixels of row y whose target is inside the raster.
+         */
+        private void step(int y, int dx, int dy, float tangent, float[] maxTangent) {
+            int ny = y + dy;
+            if (ny < 0 || ny >= dem.height) {
+                return;
+            }
+            int w = dem.width;
+            float[] data = dem.data;
+            float noData = dem.noData;
+            int from = Math.max(0, -dx);
+            int to = Math.min(w, w - dx);
+            int centre = y * w;
+            int target = ny * w + dx;
+            int x = from;
+            for (int bound = from + SPECIES.loopBound(Math.max(0, to - from)); x < bound; x += SPECIES.length()) {
+                FloatVector c = FloatVector.fromArray(SPECIES, data, centre + x);
+                FloatVector v = FloatVector.fromArray(SPECIES, data, target + x);
+                VectorMask<Float> invalid = v.compare(VectorOperators.EQ, noData).or(v.test(VectorOperators.IS_NAN));
+                FloatVector t = v.sub(c).mul(tangent).blend(0f, invalid);
+                t.max(FloatVector.fromArray(SPECIES, maxTangent, x)).intoArray(maxTangent, x);
+            }
+            for (; x < to; x++) {
+                float v = data[target + x];
+                if (v != noData && !Float.isNaN(v)) {
+                    maxTangent[x] = Math.max(maxTangent[x], (v - data[centre + x]) * tangent);
+                }
+            }
+        }
+    }
+}
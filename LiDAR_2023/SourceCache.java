@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Local cache of source files (the downloaded zips, or the LAZ made from them),
+ * keyed by URL and remembering the ETag and Last-Modified of the version they were
+ * made from. Before a cached file is used, the server is asked with a conditional
+ * GET whether the resource changed in the meantime (see {@link StreamingFetch}).
+ *
+ * An entry is {@code <sha-256 of the URL><suffix>} plus a {@code .properties} file
+ * with the URL and the validators. The cache is limited in size; the least recently
+ * used entries are evicted first. "Used" is the modification time of the file, so
+ * the order survives restarts.
+ */
+public class SourceCache {
+
+    public record Entry(URI uri, Path file, String etag, String lastModified) {
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String suffix;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SourceCache(Path directory, long maxBytes, String suffix) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.suffix = suffix;
+        Files.createDirectories(directory);
+        for (Path file : files()) {
+            bytes += Files.size(file);
+        }
+        // Left over from a crash.
+        try (Stream<Path> parts = Files.list(directory)) {
+            for (Path part : (Iterable<Path>) parts::iterator) {
+                if (part.getFileName().toString().endsWith(".part")) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    /**
+     * The cached version of a resource, null if there is none. The entry counts as
+     * used from now on, so a concurrent {@link #put} does not evict it while it is
+     * being revalidated.
+     */
+    public synchronized Entry get(URI uri) throws IOException {
+        Path file = file(uri);
+        Path properties = properties(uri);
+        if (!Files.exists(file) || !Files.exists(properties)) {
+            return null;
+        }
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(properties)) {
+            p.load(in);
+        }
+        if (!uri.toString().equals(p.getProperty("url"))) {
+            return null;
+        }
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+        return new Entry(uri, file, p.getProperty("etag"), p.getProperty("last-modified"));
+    }
+
+    /**
+     * A new temporary file in the cache directory to be passed to {@link #put}.
+     */
+    public Path part(URI uri) throws IOException {
+        return Files.createTempFile(directory, name(uri) + ".", ".part");
+    }
+
+    /**
+     * Stores a new version of a resource, replacing the old one, and evicts the
+     * least recently used entries beyond the size limit.
+     */
+    public synchronized Entry put(URI uri, Path part, String etag, String lastModified) throws IOException {
+        Path file = file(uri);
+        if (Files.exists(file)) {
+            bytes -= Files.size(file);
+        }
+        Properties p = new Properties();
+        p.setProperty("url", uri.toString());
+        if (etag != null) {
+            p.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            p.setProperty("last-modified", lastModified);
+        }
+        Path propertiesPart = properties(uri).resolveSibling(properties(uri).getFileName() + ".part");
+        try (OutputStream out = Files.newOutputStream(propertiesPart)) {
+            p.store(out, null);
+        }
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(propertiesPart, properties(uri), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+        bytes += Files.size(file);
+        misses++;
+        evict(file);
+        return new Entry(uri, file, etag, lastModified);
+    }
+
+    /**
+     * Records that a cached entry was used (revalidated or not). Throws
+     * NoSuchFileException if it was evicted after all (a cache smaller than the
+     * entries in use).
+     */
+    public synchronized void used(Entry entry) throws IOException {
+        Files.setLastModifiedTime(entry.file(), FileTime.from(Instant.now()));
+        hits++;
+    }
+
+    private void evict(Path keep) throws IOException {
+        if (bytes <= maxBytes) {
+            return;
+        }
+        List<Path> files = files();
+        files.sort(Comparator.comparing(f -> {
+            try {
+                return Files.getLastModifiedTime(f);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+        for (Path file : files) {
+            if (bytes <= maxBytes) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            try {
+                long size = Files.size(file);
+                Files.delete(file);
+                bytes -= size;
+                evictions++;
+            } catch (NoSuchFileException e) {
+                // removed by hand
+            }
+            Path name = file.getFileName();
+            String hash = name.toString().substring(0, name.toString().length() - suffix.length());
+            Files.deleteIfExists(directory.resolve(hash + ".properties"));
+        }
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) list::iterator) {
+                if (file.getFileName().toString().endsWith(suffix)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private Path file(URI uri) {
+        return directory.resolve(name(uri) + suffix);
+    }
+
+    private Path properties(URI uri) {
+        return directory.resolve(name(uri) + ".properties");
+    }
+
+    private static String name(URI uri) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha.digest(uri.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "%d hits, %d downloads, %d evicted, %.1f of %.1f GB",
+                hits, misses, evictions, bytes / 1e9, maxBytes / 1e9);
+    }
+}
@@ -0,0 +1,215 @@
+import static java.lang.System.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs items through a fixed sequence of stages. Every stage has its own worker
+ * threads and a bounded input queue: a slow stage blocks the stage in front of it
+ * (back pressure) and each resource class (network, disk, CPU) is sized on its own.
+ * An item that fails in a stage is reported and not passed on.
+ *
+ * A task can {@link #hold} its item instead of passing it on, e.g. until other
+ * items have reached the same stage; it is later handed on with {@link #resume}.
+ * Resuming never blocks, so a stage can resume items into a later stage whose
+ * queue is full. Shutdown waits for held items to be resumed before it closes a
+ * stage, so every held item must be resumed eventually.
+ */
+public class StagedExecutor<T> {
+
+    @FunctionalInterface
+    public interface Task<T> {
+        void run(T item) throws Exception;
+    }
+
+    private static final Object POISON = new Object();
+
+    // An item with the time it was put into a queue.
+    private record Queued(Object item, long enqueued) {}
+
+    // A resumed item waiting for room in the queue of its stage.
+    private class Resumed {
+        final Stage stage;
+        final Queued queued;
+
+        Resumed(Stage stage, Queued queued) {
+            this.stage = stage;
+            this.queued = queued;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private boolean started;
+    // Set by hold() on the worker thread running the task.
+    private final ThreadLocal<Boolean> held = ThreadLocal.withInitial(() -> false);
+    // Items held and not yet back in a queue; guarded by this.
+    private int heldItems;
+    // Resumed items that did not fit into their queue, put there by the resume thread.
+    private final BlockingQueue<Resumed> overflow = new LinkedBlockingQueue<>();
+    private Thread resumer;
+
+    public StagedExecutor<T> stage(String name, int threads, int queueCapacity, Task<T> task) {
+        if (started) {
+            throw new IllegalStateException("executor already started");
+        }
+        stages.add(new Stage(name, Math.max(1, threads), Math.max(1, queueCapacity), task));
+        return this;
+    }
+
+    public void start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("no stages");
+        }
+        started = true;
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            for (int t = 0; t < stage.threads; t++) {
+                Thread worker = new Thread(() -> stage.work(next), stage.name + "-" + t);
+                stage.workers.add(worker);
+                worker.start();
+            }
+        }
+        resumer = new Thread(() -> {
+            try {
+                while (true) {
+                    Resumed resumed = overflow.take();
+                    resumed.stage.queue.put(resumed.queued);
+                    released();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "resume");
+        resumer.setDaemon(true);
+        resumer.start();
+    }
+
+    /**
+     * Hands an item to the first stage. Blocks while the first queue is full.
+     */
+    public void submit(T item) throws InterruptedException {
+        if (!started) {
+            throw new IllegalStateException("executor not started");
+        }
+        stages.get(0).queue.put(new Queued(item, nanoTime()));
+    }
+
+    /**
+     * Called from a task: the item is not passed on when the task returns.
+     */
+    public void hold(T item) {
+        held.set(true);
+    }
+
+    /**
+     * Puts a held item into the queue of the given stage. Does not block: if the
+     * queue is full, the item is handed to the resume thread, which waits for room.
+     * Safe to call from the worker thread of any stage.
+     */
+    public void resume(T item, String stage) {
+        for (Stage s : stages) {
+            if (s.name.equals(stage)) {
+                Queued queued = new Queued(item, nanoTime());
+                if (s.queue.offer(queued)) {
+                    released();
+                } else {
+                    overflow.add(new Resumed(s, queued));
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException(stage);
+    }
+
+    private synchronized void released() {
+        heldItems--;
+        notifyAll();
+    }
+
+    private synchronized void holding() {
+        heldItems++;
+    }
+
+    /**
+     * Waits until every submitted item has left the last stage. Stages are closed
+     * front to back so no stage stops while its predecessor can still deliver, and
+     * only once no item is held, so a held item is not resumed into a closed stage.
+     */
+    public void shutdown() throws InterruptedException {
+        for (Stage stage : stages) {
+            // Only exact once the stages in front are closed: until then a resume
+            // may still run ahead of the hold it belongs to.
+            synchronized (this) {
+                while (heldItems > 0) {
+                    wait();
+                }
+            }
+            for (int t = 0; t < stage.threads; t++) {
+                stage.queue.put(new Queued(POISON, nanoTime()));
+            }
+            for (Thread worker : stage.workers) {
+                worker.join();
+            }
+        }
+        resumer.interrupt();
+    }
+
+    /**
+     * Called on the worker thread right before an item runs through a stage, with
+     * the time it waited in the queue of the stage.
+     */
+    protected void started(T item, String stage, long queueWaitNanos) {
+    }
+
+    protected void failed(T item, String stage, Exception e) {
+        err.println("Error in stage " + stage + ": " + item);
+        e.printStackTrace();
+    }
+
+    private class Stage {
+        final String name;
+        final int threads;
+        final BlockingQueue<Queued> queue;
+        final Task<T> task;
+        final List<Thread> workers = new ArrayList<>();
+
+        Stage(String name, int threads, int queueCapacity, Task<T> task) {
+            this.name = name;
+            this.threads = threads;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.task = task;
+        }
+
+        @SuppressWarnings("unchecked")
+        void work(Stage next) {
+            try {
+                while (true) {
+                    Queued queued = queue.take();
+                    if (queued.item() == POISON) {
+                        return;
+                    }
+                    T item = (T) queued.item();
+                    held.set(false);
+                    try {
+                        started(item, name, nanoTime() - queued.enqueued());
+                        task.run(item);
+                    } catch (Exception e) {
+                        failed(item, name, e);
+                        continue;
+                    }
+                    if (held.get()) {
+                        holding();
+                    } else if (next != null) {
+                        next.queue.put(new Queued(item, nanoTime()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+import static java.lang.System.*;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a zip archive and inflates one entry while the bytes arrive. The zip
+ * itself never touches the disk. A dropped connection is resumed with an HTTP range
+ * request at the byte where it broke off, so the entry is not started over.
+ *
+ * With the ETag and Last-Modified of a cached copy the request is conditional: if
+ * the server answers 304 Not Modified, nothing is downloaded.
+ */
+public class StreamingFetch {
+
+    static final int MAX_RETRIES = Integer.getInteger("fetch.retries", 5);
+    static final int TIMEOUT_MILLIS = Integer.getInteger("fetch.timeout", 60_000);
+
+    /**
+     * Outcome of a (conditional) fetch: the size of the entry and the validators of
+     * the version that was downloaded, or {@code notModified}.
+     */
+    public record Result(boolean notModified, long size, String etag, String lastModified) {
+    }
+
+    /**
+     * An answer that retrying does not change: a client error (4xx other than 408
+     * and 429), or a resource that changed while it was being downloaded.
+     */
+    static class PermanentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PermanentException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Writes the entry {@code entryName} of the zip at {@code uri} to {@code target}
+     * and returns its size. The entry is written to a {@code .part} file first and
+     * only moved to {@code target} once it is complete.
+     */
+    public static long fetchEntry(URI uri, String entryName, Path target) throws IOException {
+        return fetchEntry(uri, entryName, target, null, null, null).size();
+    }
+
+    /**
+     * Like {@link #fetchEntry(URI, String, Path)}, but only if the resource differs
+     * from the version with {@code etag} / {@code lastModified} (either may be null).
+     * With {@code zipCopy} the whole zip is written there as well, while it streams by.
+     */
+    public static Result fetchEntry(URI uri, String entryName, Path target, String etag, String lastModified, Path zipCopy) throws IOException {
+        try (ResumableHttpInputStream http = new ResumableHttpInputStream(uri, etag, lastModified)) {
+            if (http.notModified()) {
+                return new Result(true, 0, etag, lastModified);
+            }
+            try (OutputStream copy = zipCopy == null ? OutputStream.nullOutputStream() : Files.newOutputStream(zipCopy);
+                 InputStream tee = new TeeInputStream(http, copy);
+                 ZipInputStream zip = new ZipInputStream(new BufferedInputStream(tee, 1 << 16))) {
+                long size = copyEntry(zip, entryName, target, uri.toString());
+                // The copy also needs the rest of the zip (other entries, central directory).
+                tee.transferTo(OutputStream.nullOutputStream());
+                return new Result(false, size, http.etag, http.lastModified);
+            }
+        }
+    }
+
+    /**
+     * Writes the entry {@code entryName} of a local zip to {@code target}.
+     */
+    public static long extractEntry(Path zipFile, String entryName, Path target) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(zipFile), 1 << 16))) {
+            return copyEntry(zip, entryName, target, zipFile.toString());
+        }
+    }
+
+    private static long copyEntry(ZipInputStream zip, String entryName, Path target, String source) throws IOException {
+        // Unique, so two workers fetching the same tile on a shared file system never write into one file.
+        Path part = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (name.equals(entryName) || name.endsWith("/" + entryName)) {
+                    Files.copy(zip, part, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return Files.size(target);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        throw new FileNotFoundException(entryName + " not found in " + source);
+    }
+
+    /**
+     * Copies every byte read to a second stream.
+     */
+    private static class TeeInputStream extends InputStream {
+        private final InputStream in;
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            this.in = in;
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Input stream over an HTTP resource that reconnects after I/O errors and
+     * continues at the current position. {@code If-Range} makes sure the remainder
+     * comes from the same version of the resource. The first request is sent
+     * lazily and retried like the later ones.
+     */
+    static class ResumableHttpInputStream extends InputStream {
+        private final URI uri;
+        private InputStream in;
+        private HttpURLConnection connection;
+        private long position;
+        private long length = -1;
+        private String validator;
+        private int failures;
+        // Validators sent with the first request, and those of the response.
+        private final String ifNoneMatch;
+        private final String ifModifiedSince;
+        String etag;
+        String lastModified;
+        private boolean notModified;
+
+        ResumableHttpInputStream(URI uri) {
+            this(uri, null, null);
+        }
+
+        ResumableHttpInputStream(URI uri, String ifNoneMatch, String ifModifiedSince) {
+            this.uri = uri;
+            this.ifNoneMatch = ifNoneMatch;
+            this.ifModifiedSince = ifModifiedSince;
+        }
+
+        /**
+         * Whether the server answered the conditional request with 304. Sends the
+         * first request if that has not happened yet.
+         */
+        boolean notModified() throws IOException {
+            connect();
+            return notModified;
+        }
+
+        private void connect() throws IOException {
+            while (in == null) {
+                try {
+                    open();
+                } catch (IOException e) {
+                    retry(e);
+                }
+            }
+        }
+
+        private void open() throws IOException {
+            connection = (HttpURLConnection) uri.toURL().openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (position > 0) {
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
+            } else {
+                if (ifNoneMatch != null) {
+                    connection.setRequestProperty("If-None-Match", ifNoneMatch);
+                }
+                if (ifModifiedSince != null) {
+                    connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+                }
+            }
+            int code = connection.getResponseCode();
+            if (position == 0 && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified = true;
+                length = 0;
+                in = InputStream.nullInputStream();
+                return;
+            }
+            if (code >= 400) {
+                connection.disconnect();
+                if (code < 500 && code != 408 && code != 429) {
+                    throw new PermanentException("HTTP " + code + " for " + uri);
+                }
+                throw new IOException("HTTP " + code + " for " + uri);
+            }
+            if (position == 0) {
+                length = connection.getContentLengthLong();
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                validator = etag != null ? etag : lastModified;
+                in = connection.getInputStream();
+            } else if (code == HttpURLConnection.HTTP_PARTIAL) {
+                in = connection.getInputStream();
+            } else if (validator != null) {
+                // If-Range did not match: the resource changed in between.
+                connection.disconnect();
+                throw new PermanentException("Resource changed while downloading: " + uri);
+            } else {
+                // Server ignores ranges: read from the start and drop what we already have.
+                in = connection.getInputStream();
+                in.skipNBytes(position);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                connect();
+                try {
+                    int n = in.read(b, off, len);
+                    if (n < 0 && length >= 0 && position < length) {
+                        throw new IOException("Connection closed at byte " + position + " of " + length);
+                    }
+                    if (n > 0) {
+                        position += n;
+                        failures = 0;
+                    }
+                    return n;
+                } catch (IOException e) {
+                    retry(e);
+                }
+            }
+        }
+
+        /**
+         * Drops the connection after a failed request or read and waits before the
+         * next attempt, or rethrows once retrying is pointless or the retries are used up.
+         */
+        private void retry(IOException e) throws IOException {
+            if (e instanceof PermanentException || ++failures > MAX_RETRIES) {
+                throw e;
+            }
+            if (position == 0 && length < 0) {
+                err.println("-- Request failed (" + e.getMessage() + "), retrying: " + uri);
+            } else {
+                err.println("-- Download interrupted (" + e.getMessage() + "), resuming at byte " + position + ": " + uri);
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+            in = null;
+            try {
+                Thread.sleep(1000L * failures);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ie);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.stream.IntStream;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Hillshade and slope in the JVM, following gdaldem: Horn's 3x3 gradient, byte
+ * hillshade 1..255 with 0 as nodata, slope in degrees with -9999 as nodata, and
+ * {@code -compute_edges} behaviour: neighbours beyond the edge are extrapolated
+ * linearly from the two pixels inside ({@code 2a - b}, along the columns in the
+ * first and last row, along the rows elsewhere), nodata neighbours take the value
+ * of the centre pixel. test/terrain_reference.java checks this against gdaldem.
+ *
+ * Rows are split into bands that run in parallel. Interior pixels are computed
+ * with the Vector API; border pixels and windows touching nodata take the scalar
+ * path.
+ */
+public class Terrain {
+
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public static final float HILLSHADE_NODATA = 0f;
+    public static final float SLOPE_NODATA = -9999f;
+
+    /**
+     * Parameters of one hillshade rendering, e.g. {@code -alt 55 -multidirectional}.
+     */
+    public record Hillshade(double altitude, double azimuth, double zFactor, boolean multidirectional) {
+
+        public static Hillshade multidirectional(double altitude) {
+            return new Hillshade(altitude, 315, 1, true);
+        }
+
+        /** gdaldem defaults: {@code -az 315 -alt 45}. */
+        public static Hillshade standard() {
+            return new Hillshade(45, 315, 1, false);
+        }
+    }
+
+    private interface Kernel {
+        /** Vectorized, all nine inputs are valid. */
+        FloatVector apply(FloatVector a, FloatVector b, FloatVector c, FloatVector d, FloatVector f, FloatVector g, FloatVector h, FloatVector i);
+
+        /** Scalar, all nine inputs are valid. */
+        float apply(float[] w);
+    }
+
+    public static Raster hillshade(Raster dem, Hillshade params) {
+        return run(dem, hillshadeKernel(dem.resolution, params), HILLSHADE_NODATA);
+    }
+
+    public static Raster slope(Raster dem, double zFactor) {
+        float k = (float) (zFactor / (8 * dem.resolution));
+        float toDegrees = (float) (180 / Math.PI);
+        Kernel kernel = new Kernel() {
+            @Override
+            public FloatVector apply(FloatVector a, FloatVector b, FloatVector c, FloatVector d, FloatVector f, FloatVector g, FloatVector h, FloatVector i) {
+                FloatVector p = dzdx(a, c, d, f, g, i).mul(k);
+                FloatVector q = dzdy(a, b, c, g, h, i).mul(k);
+                FloatVector gradient = p.mul(p).add(q.mul(q)).lanewise(VectorOperators.SQRT);
+                return gradient.lanewise(VectorOperators.ATAN).mul(toDegrees);
+            }
+
+            @Override
+            public float apply(float[] w) {
+                double p = dzdx(w) * k;
+                double q = dzdy(w) * k;
+                return (float) Math.toDegrees(Math.atan(Math.sqrt(p * p + q * q)));
+            }
+        };
+        return run(dem, kernel, SLOPE_NODATA);
+    }
+
+    private static Kernel hillshadeKernel(double resolution, Hillshade params) {
+        float k = (float) (params.zFactor() / (8 * resolution));
+        double alt = Math.toRadians(params.altitude());
+        float sinAlt = (float) Math.sin(alt);
+        float cosAlt = (float) Math.cos(alt);
+        if (!params.multidirectional()) {
+            double az = Math.toRadians(params.azimuth());
+            float sx = (float) (Math.sin(az) * Math.cos(alt));
+            float sy = (float) (Math.cos(az) * Math.cos(alt));
+            return new Kernel() {
+                @Override
+                public FloatVector apply(FloatVector a, FloatVector b, FloatVector c, FloatVector d, FloatVector f, FloatVector g, FloatVector h, FloatVector i) {
+                    FloatVector p = dzdx(a, c, d, f, g, i).mul(k);
+                    FloatVector q = dzdy(a, b, c, g, h, i).mul(k);
+                    FloatVector norm = p.mul(p).add(q.mul(q)).add(1f).lanewise(VectorOperators.SQRT);
+                    FloatVector cang = p.mul(-sx).sub(q.mul(sy)).add(sinAlt).div(norm);
+                    return cang.max(0f).mul(254f).add(1f);
+                }
+
+                @Override
+                public float apply(float[] w) {
+                    double p = dzdx(w) * k;
+                    double q = dzdy(w) * k;
+                    double cang = (sinAlt - (sx * p + sy * q)) / Math.sqrt(1 + p * p + q * q);
+                    return (float) (cang <= 0 ? 1 : 1 + 254 * cang);
+                }
+            };
+        }
+        // Combination of 225, 270, 315 and 360 degrees azimuth, weighted by the
+        // direction of the gradient like gdaldem -multidirectional (Mark, 1992).
+        float h = (float) Math.sqrt(0.5) * cosAlt;
+        return new Kernel() {
+            @Override
+            public FloatVector apply(FloatVector a, FloatVector b, FloatVector c, FloatVector d, FloatVector f, FloatVector g, FloatVector hh, FloatVector i) {
+                FloatVector p = dzdx(a, c, d, f, g, i).mul(k);
+                FloatVector q = dzdy(a, b, c, g, hh, i).mul(k);
+                FloatVector pp = p.mul(p);
+                FloatVector qq = q.mul(q);
+                FloatVector pq = p.mul(q);
+                FloatVector gg = pp.add(qq);
+                FloatVector norm = gg.add(1f).lanewise(VectorOperators.SQRT);
+                FloatVector c225 = p.add(q).mul(h).add(sinAlt).div(norm).max(0f);
+                FloatVector c270 = p.mul(cosAlt).add(sinAlt).div(norm).max(0f);
+                FloatVector c315 = p.sub(q).mul(h).add(sinAlt).div(norm).max(0f);
+                FloatVector c360 = q.mul(-cosAlt).add(sinAlt).div(norm).max(0f);
+                FloatVector half = gg.mul(0.5f);
+                FloatVector sum = half.add(pq).mul(c225)
+                        .add(pp.mul(c270))
+                        .add(half.sub(pq).mul(c315))
+                        .add(qq.mul(c360));
+                VectorMask<Float> flat = gg.compare(VectorOperators.EQ, 0f);
+                FloatVector cang = sum.div(gg.mul(2f)).blend(sinAlt, flat);
+                return cang.mul(254f).add(1f);
+            }
+
+            @Override
+            public float apply(float[] w) {
+                double p = dzdx(w) * k;
+                double q = dzdy(w) * k;
+                double gg = p * p + q * q;
+                if (gg == 0) {
+                    return 1 + 254 * sinAlt;
+                }
+                double norm = Math.sqrt(1 + gg);
+                double c225 = Math.max(0, (sinAlt + h * (p + q)) / norm);
+                double c270 = Math.max(0, (sinAlt + cosAlt * p) / norm);
+                double c315 = Math.max(0, (sinAlt + h * (p - q)) / norm);
+                double c360 = Math.max(0, (sinAlt - cosAlt * q) / norm);
+                double sum = (0.5 * gg + p * q) * c225 + p * p * c270 + (0.5 * gg - p * q) * c315 + q * q * c360;
+                return (float) (1 + 254 * sum / (2 * gg));
+            }
+        };
+    }
+
+    // Window layout:  a b c / d e f / g h i, row 0 is north.
+    private static FloatVector dzdx(FloatVector a, FloatVector c, FloatVector d, FloatVector f, FloatVector g, FloatVector i) {
+        return c.add(f).add(f).add(i).sub(a.add(d).add(d).add(g));
+    }
+
+    private static FloatVector dzdy(FloatVector a, FloatVector b, FloatVector c, FloatVector g, FloatVector h, FloatVector i) {
+        return a.add(b).add(b).add(c).sub(g.add(h).add(h).add(i));
+    }
+
+    // Summed in float in the order of gdaldem, like the vector path.
+    private static double dzdx(float[] w) {
+        return (w[2] + w[5] + w[5] + w[8]) - (w[0] + w[3] + w[3] + w[6]);
+    }
+
+    private static double dzdy(float[] w) {
+        return (w[0] + w[1] + w[1] + w[2]) - (w[6] + w[7] + w[7] + w[8]);
+    }
+
+    private static Raster run(Raster dem, Kernel kernel, float outNoData) {
+        float[] out = new float[dem.width * dem.height];
+        int bands = Math.min(dem.height, Runtime.getRuntime().availableProcessors() * 4);
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int from = (int) ((long) dem.height * band / bands);
+            int to = (int) ((long) dem.height * (band + 1) / bands);
+            float[] window = new float[9];
+            for (int y = from; y < to; y++) {
+                row(dem, kernel, outNoData, y, out, window);
+            }
+        });
+        return dem.withData(out, outNoData);
+    }
+
+    private static void row(Raster dem, Kernel kernel, float outNoData, int y, float[] out, float[] window) {
+        int w = dem.width;
+        int x = 0;
+        if (y > 0 && y < dem.height - 1 && w > 2) {
+            float[] data = dem.data;
+            float noData = dem.noData;
+            int up = (y - 1) * w;
+            int mid = y * w;
+            int down = (y + 1) * w;
+            out[mid] = scalar(dem, kernel, outNoData, 0, y, window);
+            x = 1;
+            int bound = w - 1 - SPECIES.length();
+            for (; x <= bound; x += SPECIES.length()) {
+                FloatVector a = FloatVector.fromArray(SPECIES, data, up + x - 1);
+                FloatVector b = FloatVector.fromArray(SPECIES, data, up + x);
+                FloatVector c = FloatVector.fromArray(SPECIES, data, up + x + 1);
+                FloatVector d = FloatVector.fromArray(SPECIES, data, mid + x - 1);
+                FloatVector e = FloatVector.fromArray(SPECIES, data, mid + x);
+                FloatVector f = FloatVector.fromArray(SPECIES, data, mid + x + 1);
+                FloatVector g = FloatVector.fromArray(SPECIES, data, down + x - 1);
+                FloatVector h = FloatVector.fromArray(SPECIES, data, down + x);
+                FloatVector i = FloatVector.fromArray(SPECIES, data, down + x + 1);
+                VectorMask<Float> missing = invalid(a, noData).or(invalid(b, noData)).or(invalid(c, noData))
+                        .or(invalid(d, noData)).or(invalid(e, noData)).or(invalid(f, noData))
+                        .or(invalid(g, noData)).or(invalid(h, noData)).or(invalid(i, noData));
+                if (missing.anyTrue()) {
+                    for (int k = 0; k < SPECIES.length(); k++) {
+                        out[mid + x + k] = scalar(dem, kernel, outNoData, x + k, y, window);
+                    }
+                } else {
+                    kernel.apply(a, b, c, d, f, g, h, i).intoArray(out, mid + x);
+                }
+            }
+        }
+        for (; x < w; x++) {
+            out[y * w + x] = scalar(dem, kernel, outNoData, x, y, window);
+        }
+    }
+
+    private static VectorMask<Float> invalid(FloatVector v, float noData) {
+        return v.compare(VectorOperators.EQ, noData).or(v.test(VectorOperators.IS_NAN));
+    }
+
+    private static float scalar(Raster dem, Kernel kernel, float outNoData, int x, int y, float[] window) {
+        float centre = dem.get(x, y);
+        if (dem.isNoData(centre)) {
+            return outNoData;
+        }
+        boolean extrapolate = dem.width >= 2 && dem.height >= 2;
+        boolean edgeRow = y == 0 || y == dem.height - 1;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                int nx = x + dx;
+                int ny = y + dy;
+                float v;
+                if (!extrapolate && (nx < 0 || ny < 0 || nx >= dem.width || ny >= dem.height)) {
+                    v = dem.noData;
+                } else if (ny < 0 || ny >= dem.height) {
+                    // Above the first or below the last row, in the columns clamped to the raster.
+                    int cx = Math.max(0, Math.min(dem.width - 1, nx));
+                    v = extrapolate(dem, dem.get(cx, y), dem.get(cx, y - dy));
+                } else if (nx < 0 || nx >= dem.width) {
+                    // gdaldem repeats the edge column in the first and last row.
+                    v = edgeRow ? dem.get(x, ny) : extrapolate(dem, dem.get(x, ny), dem.get(x - dx, ny));
+                } else {
+                    v = dem.get(nx, ny);
+                }
+                window[(dy + 1) * 3 + dx + 1] = dem.isNoData(v) ? centre : v;
+            }
+        }
+        return kernel.apply(window);
+    }
+
+    private static float extrapolate(Raster dem, float edge, float inner) {
+        return dem.isNoData(edge) || dem.isNoData(inner) ? dem.noData : 2 * edge - inner;
+    }
+}
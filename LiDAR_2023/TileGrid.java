@@ -0,0 +1,228 @@
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The 1 km tiles of a download list (one URL per line, as exported from
+ * data.geo.admin.ch), keyed by the kilometre coordinates of the lower left corner
+ * in LV95 ({@link Halo#key}). The coordinates come from the {@code E-N} part of
+ * the file name, e.g. {@code swisssurface3d_2023_2592-1228_2056_5728.las.zip}, so
+ * the LAS, raster and other lists of the same area give the same keys.
+ *
+ * A run can be limited to the tiles in a bounding box, in a polygon, or to a list
+ * of changed tiles (plus the neighbours whose halo reaches into them).
+ */
+public class TileGrid {
+
+    private static final Pattern TILE = Pattern.compile("(?<![0-9])(\\d{4})-(\\d{4})(?![0-9])");
+    private static final Pattern RING = Pattern.compile("\\(([^()]+)\\)");
+
+    // key -> location, in the order of the list
+    private final Map<Long, String> locations = new LinkedHashMap<>();
+
+    public TileGrid(Collection<String> locations) {
+        for (String location : locations) {
+            String line = location.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            this.locations.putIfAbsent(key(line), line);
+        }
+    }
+
+    public static TileGrid load(Path csv) throws IOException {
+        return new TileGrid(Files.readAllLines(csv));
+    }
+
+    /**
+     * Key of a tile from its id ({@code 2592-1228}), URL or file name.
+     */
+    public static long key(String location) {
+        String name = location.substring(location.lastIndexOf('/') + 1);
+        Matcher m = TILE.matcher(name);
+        if (!m.find()) {
+            throw new IllegalArgumentException("No tile E-N in " + location);
+        }
+        return Halo.key(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+    }
+
+    /**
+     * Id of a tile as in the file names, {@code 2592-1228}.
+     */
+    public static String id(long key) {
+        return Halo.e(key) + "-" + Halo.n(key);
+    }
+
+    public Set<Long> keys() {
+        return locations.keySet();
+    }
+
+    public String location(long key) {
+        return locations.get(key);
+    }
+
+    public boolean contains(long key) {
+        return locations.containsKey(key);
+    }
+
+    /**
+     * The locations of the given tiles, in the order of the list.
+     */
+    public List<String> locations(Collection<Long> keys) {
+        List<String> selected = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : locations.entrySet()) {
+            if (keys.contains(entry.getKey())) {
+                selected.add(entry.getValue());
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * The up to eight neighbours of a tile that are in the list.
+     */
+    public List<Long> neighbours(long key) {
+        List<Long> neighbours = new ArrayList<>();
+        for (long neighbour : Halo.neighbourhood(key)) {
+            if (neighbour != key && contains(neighbour)) {
+                neighbours.add(neighbour);
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * Tiles overlapping the box (LV95 metres).
+     */
+    public Set<Long> bbox(double minE, double minN, double maxE, double maxN) {
+        Set<Long> selected = new LinkedHashSet<>();
+        for (long key : keys()) {
+            double e = Halo.e(key) * 1000.0;
+            double n = Halo.n(key) * 1000.0;
+            if (e < maxE && e + 1000 > minE && n < maxN && n + 1000 > minN) {
+                selected.add(key);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Tiles overlapping the polygon (LV95 metres).
+     */
+    public Set<Long> polygon(Path2D polygon) {
+        Set<Long> selected = new LinkedHashSet<>();
+        for (long key : keys()) {
+            if (polygon.intersects(Halo.e(key) * 1000.0, Halo.n(key) * 1000.0, 1000, 1000)) {
+                selected.add(key);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * The tiles plus their neighbours in the list.
+     */
+    public Set<Long> withNeighbours(Collection<Long> keys) {
+        Set<Long> selected = new LinkedHashSet<>();
+        for (long key : keys) {
+            if (contains(key)) {
+                selected.add(key);
+            }
+            selected.addAll(neighbours(key));
+        }
+        return selected;
+    }
+
+    /**
+     * The tiles in the bounding box, the polygon and the changed tiles (each may be
+     * null). With {@code dependents} the neighbours of changed tiles are included,
+     * for products computed with a halo.
+     */
+    public Set<Long> select(String bbox, String polygon, String changed, boolean dependents) throws IOException {
+        Set<Long> selected = new LinkedHashSet<>(keys());
+        if (bbox != null) {
+            double[] b = parseBbox(bbox);
+            selected.retainAll(bbox(b[0], b[1], b[2], b[3]));
+        }
+        if (polygon != null) {
+            selected.retainAll(polygon(parsePolygon(polygon)));
+        }
+        if (changed != null) {
+            Set<Long> keys = parseTiles(changed);
+            selected.retainAll(dependents ? withNeighbours(keys) : keys);
+        }
+        return selected;
+    }
+
+    /**
+     * {@code minE,minN,maxE,maxN} in LV95 metres.
+     */
+    public static double[] parseBbox(String bbox) {
+        String[] parts = bbox.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Expected minE,minN,maxE,maxN: " + bbox);
+        }
+        double[] values = new double[4];
+        for (int i = 0; i < 4; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * A WKT POLYGON or MULTIPOLYGON in LV95, or a file containing one. Holes are
+     * taken out (even-odd rule).
+     */
+    public static Path2D parsePolygon(String wkt) throws IOException {
+        if (Files.isRegularFile(Paths.get(wkt))) {
+            wkt = Files.readString(Paths.get(wkt));
+        }
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+        Matcher m = RING.matcher(wkt);
+        while (m.find()) {
+            boolean first = true;
+            for (String point : m.group(1).split(",")) {
+                String[] xy = point.trim().split("\\s+");
+                double x = Double.parseDouble(xy[0]);
+                double y = Double.parseDouble(xy[1]);
+                if (first) {
+                    path.moveTo(x, y);
+                    first = false;
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+            path.closePath();
+        }
+        if (path.getCurrentPoint() == null) {
+            throw new IllegalArgumentException("No polygon in " + wkt);
+        }
+        return path;
+    }
+
+    /**
+     * Tile ids or URLs, comma separated, or a file with one per line.
+     */
+    public static Set<Long> parseTiles(String tiles) throws IOException {
+        List<String> entries = Files.isRegularFile(Paths.get(tiles)) ? Files.readAllLines(Paths.get(tiles)) : List.of(tiles.split(","));
+        Set<Long> keys = new LinkedHashSet<>();
+        for (String entry : entries) {
+            String line = entry.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                keys.add(key(line));
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,218 @@
+import static java.lang.System.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * External commands (PDAL, GDAL), either as a fresh process per command
+ * ({@link #exec}) or sent to a few long-lived helper processes
+ * ({@code gdal_worker.py}) that have Python, PDAL and GDAL loaded already.
+ *
+ * Helpers speak JSON lines: a request {@code {"id":1,"args":[...]}} on stdin, a
+ * response {@code {"id":1,"ok":true,"error":null}} on stdout. stdout and stderr of
+ * every process are drained on their own threads, so a chatty child never blocks.
+ * A command that exceeds its timeout is killed; a helper is then replaced by a
+ * fresh one.
+ */
+public class WorkerPool implements AutoCloseable {
+
+    private static final Pattern RESPONSE = Pattern.compile(
+            "\\{\\s*\"id\":\\s*(\\d+),\\s*\"ok\":\\s*(true|false),\\s*\"error\":\\s*(null|\"((?:[^\"\\\\]|\\\\.)*)\").*");
+    private static final String EOF = "";
+
+    private final List<String> command;
+    private final BlockingQueue<Helper> idle;
+    private final List<Helper> all = new ArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    public WorkerPool(List<String> command, int size) throws IOException {
+        this.command = List.copyOf(command);
+        idle = new ArrayBlockingQueue<>(Math.max(1, size));
+        for (int i = 0; i < Math.max(1, size); i++) {
+            idle.add(start(i));
+        }
+    }
+
+    private Helper start(int index) throws IOException {
+        Helper helper = new Helper(index);
+        synchronized (all) {
+            all.add(helper);
+        }
+        return helper;
+    }
+
+    /**
+     * Runs a command on the next free helper. Blocks while all helpers are busy.
+     */
+    public void run(String cmd, Duration timeout) throws IOException, InterruptedException {
+        Helper helper = idle.take();
+        try {
+            if (!helper.process.isAlive()) {
+                helper = start(helper.index);
+            }
+            helper.run(ids.incrementAndGet(), cmd.split(" "), timeout);
+        } finally {
+            if (!helper.process.isAlive()) {
+                // Killed after a timeout or crashed: the next command gets a fresh one.
+                try {
+                    helper = start(helper.index);
+                } catch (IOException e) {
+                    err.println("-- helper " + helper.index + " not restarted: " + e);
+                }
+            }
+            idle.put(helper);
+        }
+    }
+
+    /**
+     * Runs a command as its own process, stdout and stderr going to the log.
+     * Returns the exit code.
+     */
+    public static int exec(String cmd, Duration timeout) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        Metrics.track(p);
+        Thread drain = drain(p.getInputStream(), "", null);
+        if (!p.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            kill(p);
+            Metrics.exited(p, -1);
+            throw new IOException("Timed out after " + timeout.toSeconds() + " s: " + cmd);
+        }
+        drain.join();
+        Metrics.exited(p, p.exitValue());
+        return p.exitValue();
+    }
+
+    /**
+     * Kills a process together with the commands it started.
+     */
+    private static void kill(Process process) throws InterruptedException {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly().waitFor();
+    }
+
+    /**
+     * Copies lines to the log, or into {@code lines} (with {@link #EOF} at the end).
+     */
+    private static Thread drain(InputStream in, String prefix, BlockingQueue<String> lines) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (lines != null) {
+                        lines.add(line);
+                    } else {
+                        err.println(prefix + line);
+                    }
+                }
+            } catch (IOException e) {
+                // process killed
+            } finally {
+                if (lines != null) {
+                    lines.add(EOF);
+                }
+            }
+        }, "drain");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private class Helper {
+        final int index;
+        final Process process;
+        final Writer stdin;
+        final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+        Helper(int index) throws IOException {
+            this.index = index;
+            process = new ProcessBuilder(command).start();
+            stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            drain(process.getInputStream(), null, responses);
+            drain(process.getErrorStream(), "[helper " + index + "] ", null);
+        }
+
+        void run(long id, String[] args, Duration timeout) throws IOException, InterruptedException {
+            err.println("[helper " + index + "] " + String.join(" ", args));
+            StringBuilder request = new StringBuilder("{\"id\":").append(id).append(",\"args\":[");
+            for (int i = 0; i < args.length; i++) {
+                request.append(i > 0 ? "," : "").append('"').append(escape(args[i])).append('"');
+            }
+            request.append("]}\n");
+            Metrics.trackShared(process);
+            int exitCode = 1;
+            try {
+                stdin.write(request.toString());
+                stdin.flush();
+                long deadline = nanoTime() + timeout.toNanos();
+                while (true) {
+                    String line = responses.poll(deadline - nanoTime(), TimeUnit.NANOSECONDS);
+                    if (line == null) {
+                        kill(process);
+                        throw new IOException("Timed out after " + timeout.toSeconds() + " s: " + Arrays.toString(args));
+                    }
+                    if (line == EOF) {
+                        throw new IOException("Helper " + index + " exited: " + Arrays.toString(args));
+                    }
+                    Matcher m = RESPONSE.matcher(line);
+                    if (!m.matches() || Long.parseLong(m.group(1)) != id) {
+                        err.println("[helper " + index + "] unexpected: " + line);
+                        continue;
+                    }
+                    if (m.group(2).equals("true")) {
+                        exitCode = 0;
+                        return;
+                    }
+                    throw new IOException(m.group(4) == null ? "failed" : m.group(4).replace("\\\"", "\"").replace("\\\\", "\\"));
+                }
+            } finally {
+                Metrics.exited(process, exitCode);
+            }
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (all) {
+            for (Helper helper : all) {
+                // EOF on stdin ends the request loop of the helper.
+                try {
+                    helper.stdin.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+            }
+            for (Helper helper : all) {
+                try {
+                    if (!helper.process.waitFor(10, TimeUnit.SECONDS)) {
+                        helper.process.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    helper.process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the steps of a tile. JMH only accepts benchmarks in a named
+ * package, while the pipeline classes live in the default package of the jbang
+ * scripts, so the steps themselves are implemented by {@code benchmark.java}
+ * ({@link Workload}) and looked up by name.
+ */
+public class TileBenchmark {
+
+    /**
+     * One synthetic tile with its inputs prepared, and the steps to measure on it.
+     */
+    public interface Workload extends AutoCloseable {
+        long decodeLas();
+
+        Object rasterizeSurfaces();
+
+        Object rasterizeAboveGround();
+
+        Object fillNoData();
+
+        Object hillshade();
+
+        Object slope();
+
+        Object skyViewFactor();
+
+        long encodeGeoTiff() throws Exception;
+
+        Object decodeGeoTiff() throws Exception;
+
+        void pdalRasterize() throws Exception;
+
+        void gdalFillNoData() throws Exception;
+
+        void gdaldemHillshade() throws Exception;
+
+        void gdaldemSlope() throws Exception;
+
+        void gdalTranslate() throws Exception;
+    }
+
+    static Workload workload(int tileMeters, double density, boolean points) throws Exception {
+        return (Workload) Class.forName("benchmark$SyntheticTile")
+                .getDeclaredConstructor(int.class, double.class, boolean.class)
+                .newInstance(tileMeters, density, points);
+    }
+
+    /**
+     * A tile with a LAS file, for the point steps.
+     */
+    @State(Scope.Benchmark)
+    public static class Points {
+        // Side length of the tile. 1000 is a full tile (20 million points, 600 MB LAS).
+        @Param("1000")
+        public int tileMeters;
+
+        @Param("20")
+        public double density;
+
+        Workload tile;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            tile = workload(tileMeters, density, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            tile.close();
+        }
+    }
+
+    /**
+     * A tile with rasters only, for the raster steps.
+     */
+    @State(Scope.Benchmark)
+    public static class Rasters {
+        @Param("1000")
+        public int tileMeters;
+
+        Workload tile;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            tile = workload(tileMeters, 0, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            tile.close();
+        }
+    }
+
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    public static class InProcess {
+
+        @Benchmark
+        public long decodeLas(Points p) {
+            return p.tile.decodeLas();
+        }
+
+        @Benchmark
+        public Object rasterizeSurfaces(Points p) {
+            return p.tile.rasterizeSurfaces();
+        }
+
+        @Benchmark
+        public Object rasterizeAboveGround(Points p) {
+            return p.tile.rasterizeAboveGround();
+        }
+
+        @Benchmark
+        public Object fillNoData(Rasters r) {
+            return r.tile.fillNoData();
+        }
+
+        @Benchmark
+        public Object hillshade(Rasters r) {
+            return r.tile.hillshade();
+        }
+
+        @Benchmark
+        public Object slope(Rasters r) {
+            return r.tile.slope();
+        }
+
+        @Benchmark
+        public Object skyViewFactor(Rasters r) {
+            return r.tile.skyViewFactor();
+        }
+
+        @Benchmark
+        public long encodeGeoTiff(Rasters r) throws Exception {
+            return r.tile.encodeGeoTiff();
+        }
+
+        @Benchmark
+        public Object decodeGeoTiff(Rasters r) throws Exception {
+            return r.tile.decodeGeoTiff();
+        }
+    }
+
+    /**
+     * The same steps through the PDAL/GDAL commands, including process start and
+     * reading and writing the files.
+     */
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    public static class Subprocess {
+
+        @Benchmark
+        public void pdalRasterize(Points p) throws Exception {
+            p.tile.pdalRasterize();
+        }
+
+        @Benchmark
+        public void gdalFillNoData(Rasters r) throws Exception {
+            r.tile.gdalFillNoData();
+        }
+
+        @Benchmark
+        public void gdaldemHillshade(Rasters r) throws Exception {
+            r.tile.gdaldemHillshade();
+        }
+
+        @Benchmark
+        public void gdaldemSlope(Rasters r) throws Exception {
+            r.tile.gdaldemSlope();
+        }
+
+        @Benchmark
+        public void gdalTranslate(Rasters r) throws Exception {
+            r.tile.gdalTranslate();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//SOURCES bench/TileBenchmark.java
+//SOURCES Raster.java
+//SOURCES GeoTiff.java
+//SOURCES Terrain.java
+//SOURCES FillNoData.java
+//SOURCES LasReader.java
+//SOURCES Rasterizer.java
+//SOURCES SkyView.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector -proc:full
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import bench.TileBenchmark;
+
+/**
+ * JMH benchmarks of the hot steps of a tile: LAS decoding, rasterization, nodata
+ * fill, hillshade/slope and GeoTIFF encoding, on synthetic tiles that look like a
+ * dense swissSURFACE3D 1 km tile (about 20 points/m², buildings, trees, holes in
+ * the DTM below buildings).
+ *
+ * The JMH classes are in bench/TileBenchmark.java. {@code InProcess} runs the Java
+ * implementations, {@code Subprocess} the PDAL and GDAL commands preprocess.java
+ * runs otherwise (they must be on the PATH). Without arguments only
+ * {@code InProcess} runs; other arguments go to JMH:
+ *
+ * <pre>
+ * jbang benchmark.java
+ * jbang benchmark.java -p tileMeters=250 InProcess.fill
+ * jbang benchmark.java -p tileMeters=250 "InProcess|Subprocess"
+ * </pre>
+ */
+public class benchmark {
+
+    public static void main(String... args) throws Exception {
+        org.openjdk.jmh.Main.main(args.length == 0 ? new String[] { "TileBenchmark.InProcess" } : args);
+    }
+
+    static final double RESOLUTION = 0.25;
+    static final double MIN_E = 2600000;
+    static final double MIN_N = 1200000;
+
+    /**
+     * Deterministic synthetic landscape: rolling terrain, a block of houses every
+     * 40 m with some probability, trees in between. Everything is a function of the
+     * coordinates, so points and rasters agree and can be generated in any order.
+     */
+    public static class SyntheticTile implements TileBenchmark.Workload {
+
+        final int meters;
+        final int pixels;
+        final Path dir;
+        final Path las;
+        final LasReader reader;
+        final Raster dtm;
+        final Raster dtmFilled;
+        final Raster dsm;
+        final Path dtmFile;
+        final Path dtmFilledFile;
+        final Path dsmFile;
+
+        public SyntheticTile(int meters, double density, boolean points) throws IOException {
+            this.meters = meters;
+            pixels = (int) (meters / RESOLUTION);
+            dir = Files.createTempDirectory("benchmark");
+            dtm = dtm(meters);
+            dtmFilled = FillNoData.fill(dtm, 500, 2);
+            dsm = dsm(meters);
+            dtmFile = dir.resolve("dtm.tif");
+            dtmFilledFile = dir.resolve("dtm_filled.tif");
+            dsmFile = dir.resolve("dsm_filled.tif");
+            GeoTiff.write(dtmFile, dtm, GeoTiff.SampleType.FLOAT32);
+            GeoTiff.write(dtmFilledFile, dtmFilled, GeoTiff.SampleType.FLOAT32);
+            GeoTiff.write(dsmFile, dsm, GeoTiff.SampleType.FLOAT32);
+            if (points) {
+                las = dir.resolve("tile.las");
+                writeLas(las, meters, density);
+                reader = LasReader.open(las);
+            } else {
+                las = null;
+                reader = null;
+            }
+        }
+
+        /** Reads coordinates and classification of every point. */
+        @Override
+        public long decodeLas() {
+            long sum = 0;
+            for (long i = 0; i < reader.pointCount; i++) {
+                sum += reader.rawX(i) + reader.rawY(i) + reader.rawZ(i) + reader.classification(i);
+            }
+            return sum;
+        }
+
+        /** DSM (class &gt; 1) and DTM (class 2) in one pass, like the first pass of preprocess. */
+        @Override
+        public Object rasterizeSurfaces() {
+            return Rasterizer.mean(reader, MIN_E, MIN_N + meters, pixels, pixels, RESOLUTION, List.of(
+                    Rasterizer.Product.of(c -> c > 1),
+                    Rasterizer.Product.of(c -> c == 2)));
+        }
+
+        /** Buildings and vegetation above the filled DTM, the second pass. */
+        @Override
+        public Object rasterizeAboveGround() {
+            return Rasterizer.mean(reader, MIN_E, MIN_N + meters, pixels, pixels, RESOLUTION, List.of(
+                    Rasterizer.Product.aboveGround(c -> c == 6, dtmFilled),
+                    Rasterizer.Product.aboveGround(c -> c == 3, dtmFilled)));
+        }
+
+        @Override
+        public Object fillNoData() {
+            return FillNoData.fill(dtm, 500, 2);
+        }
+
+        /** The DSM shaded like the dsm_shaded_relief product, same input as gdaldemHillshade. */
+        @Override
+        public Object hillshade() {
+            return Terrain.hillshade(dsm, Terrain.Hillshade.multidirectional(55));
+        }
+
+        @Override
+        public Object slope() {
+            return Terrain.slope(dtmFilled, 1);
+        }
+
+        @Override
+        public Object skyViewFactor() {
+            return SkyView.svf(dsm, SkyView.Params.standard(dsm.resolution));
+        }
+
+        /** Tiled DEFLATE with PREDICTOR=2, as written for every product. */
+        @Override
+        public long encodeGeoTiff() throws IOException {
+            Path out = dir.resolve("encoded.tif");
+            GeoTiff.write(out, dtmFilled, GeoTiff.SampleType.FLOAT32);
+            return Files.size(out);
+        }
+
+        @Override
+        public Object decodeGeoTiff() throws IOException {
+            return GeoTiff.read(dtmFilledFile);
+        }
+
+        @Override
+        public void pdalRasterize() throws Exception {
+            double maxE = MIN_E + meters - RESOLUTION;
+            double maxN = MIN_N + meters - RESOLUTION;
+            String bounds = "([" + MIN_E + "," + maxE + "],[" + MIN_N + "," + maxN + "])";
+            exec("pdal", "pipeline", "laz2products.json", "--readers.las.filename=" + las,
+                    "--stage.dsm.filename=" + dir.resolve("dsm.tif"), "--stage.dtm.filename=" + dir.resolve("dtm_pdal.tif"),
+                    "--stage.buildings.filename=" + dir.resolve("buildings.tif"), "--stage.vegetation.filename=" + dir.resolve("vegetation.tif"),
+                    "--writers.gdal.bounds=" + bounds);
+        }
+
+        @Override
+        public void gdalFillNoData() throws Exception {
+            Path out = dir.resolve("filled.tif");
+            Files.deleteIfExists(out);
+            exec("gdal_fillnodata.py", "-md", "500", "-si", "2", dtmFile.toString(), out.toString());
+        }
+
+        @Override
+        public void gdaldemHillshade() throws Exception {
+            exec("gdaldem", "hillshade", dsmFile.toString(), dir.resolve("hillshade.tif").toString(),
+                    "-compute_edges", "-alt", "55", "-multidirectional", "-co", "TILED=YES", "-co", "COMPRESS=DEFLATE", "-co", "PREDICTOR=2");
+        }
+
+        @Override
+        public void gdaldemSlope() throws Exception {
+            exec("gdaldem", "slope", dtmFilledFile.toString(), dir.resolve("slope.tif").toString(),
+                    "-compute_edges", "-co", "TILED=YES", "-co", "COMPRESS=DEFLATE", "-co", "PREDICTOR=2");
+        }
+
+        @Override
+        public void gdalTranslate() throws Exception {
+            exec("gdal_translate", "-q", "-co", "TILED=YES", "-co", "COMPRESS=DEFLATE", "-co", "PREDICTOR=2",
+                    dtmFilledFile.toString(), dir.resolve("translated.tif").toString());
+        }
+
+        private static void exec(String... cmd) throws IOException, InterruptedException {
+            Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (p.waitFor() != 0) {
+                throw new IOException(String.join(" ", cmd) + " exited with " + p.exitValue());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+            try (var files = Files.list(dir)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+
+        static double ground(double x, double y) {
+            return 450 + 25 * Math.sin(x / 180) * Math.cos(y / 240) + 4 * Math.sin(x / 23 + y / 31);
+        }
+
+        /** Roof height above ground, or 0 outside buildings. */
+        static double building(double x, double y) {
+            int cx = (int) Math.floor(x / 40);
+            int cy = (int) Math.floor(y / 40);
+            long h = hash(cx, cy);
+            if ((h & 3) == 0) {
+                return 0;
+            }
+            double size = 10 + (h >>> 8) % 16;
+            double lx = x - cx * 40 - 5;
+            double ly = y - cy * 40 - 5;
+            if (lx < 0 || ly < 0 || lx > size || ly > size) {
+                return 0;
+            }
+            // Gabled roof
+            double eaves = 6 + (h >>> 16) % 10;
+            return eaves + 4 * (1 - Math.abs(lx / size * 2 - 1));
+        }
+
+        /** Canopy height above ground, or 0 outside trees. */
+        static double tree(double x, double y) {
+            int cx = (int) Math.floor(x / 12);
+            int cy = (int) Math.floor(y / 12);
+            long h = hash(cx + 7919, cy - 104729);
+            if ((h & 1) == 0) {
+                return 0;
+            }
+            double radius = 2 + (h >>> 4) % 4;
+            double dx = x - cx * 12 - 6;
+            double dy = y - cy * 12 - 6;
+            double d = Math.sqrt(dx * dx + dy * dy);
+            return d > radius ? 0 : (12 + (h >>> 12) % 15) * (1 - d / radius);
+        }
+
+        static long hash(long a, long b) {
+            long h = a * 0x9E3779B97F4A7C15L + b * 0xC2B2AE3D27D4EB4FL;
+            h ^= h >>> 31;
+            h *= 0xBF58476D1CE4E5B9L;
+            return (h ^ (h >>> 29)) & Long.MAX_VALUE;
+        }
+
+        /**
+         * LAS 1.4, point format 6, 1 cm scale, like the swisstopo tiles. Points are
+         * scattered randomly over the tile.
+         */
+        static void writeLas(Path path, int meters, double density) throws IOException {
+            long count = (long) (meters * (double) meters * density);
+            int recordLength = 30;
+            ByteBuffer header = ByteBuffer.allocate(375).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(0, "LASF".getBytes());
+            header.put(24, (byte) 1).put(25, (byte) 4);
+            header.putShort(94, (short) 375).putInt(96, 375).put(104, (byte) 6).putShort(105, (short) recordLength);
+            header.putLong(247, count);
+            header.putDouble(131, 0.01).putDouble(139, 0.01).putDouble(147, 0.01);
+            header.putDouble(155, MIN_E).putDouble(163, MIN_N).putDouble(171, 0);
+            header.putDouble(179, MIN_E + meters).putDouble(187, MIN_E);
+            header.putDouble(195, MIN_N + meters).putDouble(203, MIN_N);
+            header.putDouble(211, 600).putDouble(219, 400);
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                ByteBuffer chunk = ByteBuffer.allocate(recordLength * 65536).order(ByteOrder.LITTLE_ENDIAN);
+                for (long i = 0; i < count; i++) {
+                    long h = hash(i, 17);
+                    double x = (h % 1_000_000) / 1e6 * meters;
+                    double y = ((h >>> 20) % 1_000_000) / 1e6 * meters;
+                    double g = ground(x, y);
+                    double b = building(x, y);
+                    double t = tree(x, y);
+                    int classification;
+                    double z;
+                    if (b > 0) {
+                        classification = 6;
+                        z = g + b;
+                    } else if (t > 0 && (h >>> 40) % 4 != 0) {
+                        // Some points get through the canopy to the ground.
+                        classification = 3;
+                        z = g + t * ((h >>> 44) % 100) / 100.0;
+                    } else if ((h >>> 50) % 100 == 0) {
+                        classification = 1;
+                        z = g + 0.5;
+                    } else {
+                        classification = 2;
+                        z = g;
+                    }
+                    int base = chunk.position();
+                    chunk.putInt(base, (int) Math.round(x * 100));
+                    chunk.putInt(base + 4, (int) Math.round(y * 100));
+                    chunk.putInt(base + 8, (int) Math.round(z * 100));
+                    chunk.put(base + 16, (byte) classification);
+                    chunk.position(base + recordLength);
+                    if (!chunk.hasRemaining() || i == count - 1) {
+                        chunk.flip();
+                        while (chunk.hasRemaining()) {
+                            channel.write(chunk);
+                        }
+                        chunk.clear();
+                        // The unused fields of the next chunk must be zero again.
+                        chunk.put(0, new byte[chunk.capacity()]);
+                    }
+                }
+            }
+        }
+
+        /** DTM as rasterized from ground points: nodata below buildings and dense canopy. */
+        static Raster dtm(int meters) {
+            int pixels = (int) (meters / RESOLUTION);
+            float[] data = new float[pixels * pixels];
+            for (int row = 0; row < pixels; row++) {
+                double y = meters - (row + 0.5) * RESOLUTION;
+                for (int col = 0; col < pixels; col++) {
+                    double x = (col + 0.5) * RESOLUTION;
+                    boolean hidden = building(x, y) > 0 || (tree(x, y) > 0 && hash(col, row) % 3 == 0);
+                    data[row * pixels + col] = hidden ? Rasterizer.NODATA : (float) ground(x, y);
+                }
+            }
+            return new Raster(pixels, pixels, MIN_E, MIN_N + meters, RESOLUTION, Rasterizer.NODATA, data);
+        }
+
+        /** DSM: terrain, roofs and canopy, without holes. */
+        static Raster dsm(int meters) {
+            int pixels = (int) (meters / RESOLUTION);
+            float[] data = new float[pixels * pixels];
+            for (int row = 0; row < pixels; row++) {
+                double y = meters - (row + 0.5) * RESOLUTION;
+                for (int col = 0; col < pixels; col++) {
+                    double x = (col + 0.5) * RESOLUTION;
+                    data[row * pixels + col] = (float) (ground(x, y) + Math.max(building(x, y), tree(x, y)));
+                }
+            }
+            return new Raster(pixels, pixels, MIN_E, MIN_N + meters, RESOLUTION, Rasterizer.NODATA, data);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+#!/usr/bin/env python
+"""
+Langlebiger Hilfsprozess für preprocess.java (-Dhelpers=N): führt PDAL- und
+GDAL-Befehle im selben Python-Prozess aus, statt für jeden Befehl Python, PDAL
+und GDAL neu zu starten.
+
+Protokoll: pro Zeile eine JSON-Anfrage auf stdin, pro Zeile eine JSON-Antwort auf stdout.
+
+    {"id": 1, "args": ["gdaldem", "hillshade", "in.tif", "out.tif", "-compute_edges"]}
+    {"id": 1, "ok": true, "error": null, "seconds": 1.23}
+
+Unterstützt in-process:
+    pdal pipeline <pipeline.json> [--readers.las.filename=...] [--stage.<tag>.<option>=...]
+    gdal_fillnodata.py -md <n> -si <n> <src> <dst>
+    gdal_translate <optionen> <src> <dst>
+    gdaldem <modus> <src> <dst> <optionen>
+Alles andere wird als Subprozess ausgeführt. Log-Ausgaben (auch von PDAL/GDAL) gehen nach stderr.
+"""
+
+import json
+import os
+import subprocess
+import sys
+import time
+import traceback
+
+# Das Protokoll läuft über eine eigene Kopie von stdout; was die Bibliotheken
+# nach stdout schreiben, landet in stderr.
+protocol = os.fdopen(os.dup(1), "w", buffering=1)
+os.dup2(2, 1)
+sys.stdout = sys.stderr
+
+from osgeo import gdal
+
+gdal.UseExceptions()
+
+try:
+    import pdal
+except ImportError:
+    pdal = None
+
+
+def pdal_pipeline(args):
+    path = args[0]
+    with open(path) as f:
+        spec = json.load(f)
+    stages = spec["pipeline"] if isinstance(spec, dict) else spec
+    # Wie die pdal-CLI: --<typ>.<option>=wert gilt für alle Stufen dieses Typs,
+    # --stage.<tag>.<option>=wert für die Stufe mit diesem Tag.
+    for arg in args[1:]:
+        key, value = arg[2:].split("=", 1)
+        target, option = key.rsplit(".", 1)
+        for stage in stages:
+            if not isinstance(stage, dict):
+                continue
+            if target.startswith("stage."):
+                matches = stage.get("tag") == target[len("stage."):]
+            else:
+                matches = stage.get("type") == target
+            if matches:
+                stage[option] = value
+    if pdal is None:
+        raise RuntimeError("python-pdal is not installed")
+    pdal.Pipeline(json.dumps(spec)).execute()
+
+
+def fillnodata(args):
+    max_distance = 100
+    smoothing = 0
+    files = []
+    i = 0
+    while i < len(args):
+        if args[i] == "-md":
+            max_distance = float(args[i + 1])
+            i += 2
+        elif args[i] == "-si":
+            smoothing = int(args[i + 1])
+            i += 2
+        else:
+            files.append(args[i])
+            i += 1
+    src_file, dst_file = files
+    src = gdal.Open(src_file)
+    # Wie gdal_fillnodata.py: Kopie als GTiff, dann in der Kopie füllen.
+    dst = gdal.GetDriverByName("GTiff").CreateCopy(dst_file, src)
+    gdal.FillNodata(dst.GetRasterBand(1), None, max_distance, smoothing)
+    dst.FlushCache()
+    dst = None
+    src = None
+
+
+def translate(args):
+    src, dst = args[-2:]
+    gdal.Translate(dst, src, options=args[:-2])
+
+
+def dem(args):
+    mode, src, dst = args[:3]
+    gdal.DEMProcessing(dst, src, mode, options=args[3:])
+
+
+def run(args):
+    tool = os.path.basename(args[0])
+    if tool == "pdal" and len(args) > 1 and args[1] == "pipeline":
+        pdal_pipeline(args[2:])
+    elif tool == "gdal_fillnodata.py":
+        fillnodata(args[1:])
+    elif tool == "gdal_translate":
+        translate(args[1:])
+    elif tool == "gdaldem":
+        dem(args[1:])
+    else:
+        subprocess.run(args, stdout=sys.stderr, stderr=sys.stderr, check=True)
+
+
+def main():
+    for line in sys.stdin:
+        if not line.strip():
+            continue
+        request = json.loads(line)
+        start = time.time()
+        response = {"id": request["id"], "ok": True, "error": None}
+        try:
+            run(request["args"])
+        except Exception as e:
+            traceback.print_exc(file=sys.stderr)
+            response["ok"] = False
+            response["error"] = "%s: %s" % (type(e).__name__, e)
+        response["seconds"] = round(time.time() - start, 3)
+        protocol.write(json.dumps(response) + "\n")
+        protocol.flush()
+
+
+if __name__ == "__main__":
+    main()
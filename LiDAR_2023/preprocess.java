@@ -1,24 +1,56 @@
 ///usr/bin/env jbang "$0" "$@" ; exit $?
-//DEPS net.lingala.zip4j:zip4j:2.11.5 
+//DEPS net.lingala.zip4j:zip4j:2.11.5
+//SOURCES StagedExecutor.java
+//SOURCES Manifest.java
+//SOURCES StreamingFetch.java
+//SOURCES Raster.java
+//SOURCES GeoTiff.java
+//SOURCES Terrain.java
+//SOURCES FillNoData.java
+//SOURCES LasReader.java
+//SOURCES Rasterizer.java
+//SOURCES ResourceBudget.java
+//SOURCES Metrics.java
+//SOURCES Halo.java
+//SOURCES SkyView.java
+//SOURCES Mosaic.java
+//SOURCES Leases.java
+//SOURCES WorkerPool.java
+//SOURCES SourceCache.java
+//SOURCES TileGrid.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
 
 import static java.lang.System.*;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -38,336 +70,998 @@ public class preprocess {
     static final String DTM_SHADED_RELIEF_DIRECTORY = System.getProperty("user.home")+"/tmp/dtm_shaded_relief";
     static final String NDSM_BUILDINGS_DIRECTORY = System.getProperty("user.home")+"/tmp/ndsm_buildings";
     static final String NDSM_VEGETATION_DIRECTORY = System.getProperty("user.home")+"/tmp/ndsm_vegetation";
+    static final String DSM_SVF_DIRECTORY = System.getProperty("user.home")+"/tmp/dsm_svf";
+    static final String MOSAIC_DIRECTORY = System.getProperty("user.home")+"/tmp/mosaic";
 
+    // Threads per stage, e.g. -Dthreads.rasterize=6. Network and CPU heavy stages are sized separately.
+    // The CPU heavy stages are additionally limited by the resource budget (see cost()).
+    static final int CORES = Runtime.getRuntime().availableProcessors();
+    static final int FETCH_THREADS = Integer.getInteger("threads.fetch", 4);
+    static final int UNZIP_THREADS = Integer.getInteger("threads.unzip", 2);
+    static final int RASTERIZE_THREADS = Integer.getInteger("threads.rasterize", CORES);
+    static final int FILL_THREADS = Integer.getInteger("threads.fill", CORES);
+    static final int COMPRESS_THREADS = Integer.getInteger("threads.compress", CORES);
+    static final int DERIVE_THREADS = Integer.getInteger("threads.derive", CORES);
+    // Tiles waiting in front of a stage. Keeps e.g. the downloads only a few tiles ahead of PDAL.
+    static final int QUEUE_CAPACITY = Integer.getInteger("queue.capacity", 2);
+    // Per tile and stage completion record. A restarted run skips what is already done.
+    // Distributed mode: workers on several hosts claim chunks of tiles through lease files in this
+    // shared directory (-Dleases=/mnt/shared/leases). The output directories must be shared as well.
+    static final String LEASE_DIRECTORY = System.getProperty("leases");
+    static final String WORKER = System.getProperty("worker.id", Leases.defaultWorker());
+    // Tiles per lease, consecutive in the submission order so a worker gets contiguous areas.
+    static final int LEASE_CHUNK = Integer.getInteger("lease.chunk", 16);
+    static final Duration LEASE_HEARTBEAT = Duration.ofSeconds(Long.getLong("lease.heartbeat.s", 30));
+    static final Duration LEASE_TIMEOUT = Duration.ofSeconds(Long.getLong("lease.timeout.s", 300));
+    // Each worker keeps its own manifest, metrics and mosaic dirty list.
+    static final String WORKER_SUFFIX = LEASE_DIRECTORY == null ? "" : "-" + WORKER;
 
-    public static void main(String... args) throws IOException, URISyntaxException {
+    static final String MANIFEST_FILE = System.getProperty("manifest", System.getProperty("user.home")+"/tmp/manifest"+WORKER_SUFFIX+".tsv");
+    // Per tile and stage timings (JSON lines) and totals per stage for the node_exporter textfile collector.
+    static final String METRICS_FILE = System.getProperty("metrics", System.getProperty("user.home")+"/tmp/metrics"+WORKER_SUFFIX+".jsonl");
+    static final String PROMETHEUS_FILE = System.getProperty("metrics.prometheus", System.getProperty("user.home")+"/tmp/metrics"+WORKER_SUFFIX+".prom");
+    // Inflate the LAS while downloading instead of writing the zip first. -Dfetch.streaming=false restores zip + unzip.
+    static final boolean STREAMING_FETCH = Boolean.parseBoolean(System.getProperty("fetch.streaming", "true"));
+    // Keep the sources of the streaming fetch in a local cache, revalidated with a conditional GET.
+    // zip: the download as it is; laz: converted with las2laz.json (needs PDAL, much smaller).
+    // -Dsource.cache.gb=0 turns it off.
+    static final String SOURCE_CACHE_DIRECTORY = System.getProperty("source.cache", System.getProperty("user.home")+"/tmp/source_cache");
+    static final long SOURCE_CACHE_BYTES = (long) (Double.parseDouble(System.getProperty("source.cache.gb", "100")) * 1e9);
+    static final String SOURCE_CACHE_FORMAT = System.getProperty("source.cache.format", "zip");
+    // Hillshade and slope in the JVM. -Dterrain.native=false runs gdaldem instead.
+    static final boolean NATIVE_TERRAIN = Boolean.parseBoolean(System.getProperty("terrain.native", "true"));
+    // Fill nodata in the JVM and write the compressed result directly. -Dfill.native=false runs
+    // gdal_fillnodata.py and gdal_translate (fill + compress stages) instead.
+    static final boolean NATIVE_FILL = Boolean.parseBoolean(System.getProperty("fill.native", "true"));
+    // Rasterize with the Java LAS reader (java) or the laz2products.json PDAL pipeline (pdal).
+    static final String RASTERIZER = System.getProperty("rasterizer", "java");
+    // External commands (pdal, gdal_*) are killed after this time.
+    static final Duration EXEC_TIMEOUT = Duration.ofSeconds(Long.getLong("exec.timeout.s", 3600));
+    // -Dhelpers=N sends them to N long-lived gdal_worker.py processes instead of starting
+    // Python, PDAL and GDAL anew for every command.
+    static final int HELPERS = Integer.getInteger("helpers", 0);
+    static final String HELPERS_COMMAND = System.getProperty("helpers.command", "python3 gdal_worker.py");
+    static final double RESOLUTION = 0.25;
+    static final int TILE_PIXELS = (int) (1000 / RESOLUTION);
+    // Border in metres taken from the neighbouring tiles for fill, hillshade and slope, so the
+    // products are seamless. Java fill and terrain only. -Dhalo=0 processes every tile on its own.
+    static final int HALO_METERS = Integer.getInteger("halo", 100);
+    static final int HALO = NATIVE_FILL && NATIVE_TERRAIN ? (int) (HALO_METERS / RESOLUTION) : 0;
+    // Rasterized tiles kept in memory for the halos of their neighbours.
+    static final long HALO_CACHE_BYTES = Long.getLong("halo.cache.mb", 2048) << 20;
+    // Distributed mode: a tile at a chunk border waits this long for the neighbours that other
+    // workers rasterize, then it is filled without them and recorded to run again.
+    static final Duration HALO_WAIT = Duration.ofSeconds(Long.getLong("halo.wait.s", 3600));
+    // Order the tiles are submitted in: hilbert or rows keep neighbours close together, csv as listed.
+    static final String ORDER = System.getProperty("order", "hilbert");
+    // Only the tiles overlapping -Dbbox=minE,minN,maxE,maxN or -Dpolygon=<WKT or file> (LV95 metres),
+    // or -Dchanged=<ids or URLs, or a file>: changed tiles run again from the start, with a halo
+    // also their neighbours from fill on.
+    static final String BBOX = System.getProperty("bbox");
+    static final String POLYGON = System.getProperty("polygon");
+    static final String CHANGED = System.getProperty("changed");
+    // Sky view factor of the DSM in the derive stage (Java terrain only), 8 bit like the rvt batch script.
+    // The radius is in metres; rvt's default --svf-r-max 10 is in pixels, 2.5 m on the 0.25 m DSM.
+    static final boolean SVF = NATIVE_TERRAIN && Boolean.parseBoolean(System.getProperty("svf", "true"));
+    static final SkyView.Params SVF_PARAMS = new SkyView.Params(
+            Integer.getInteger("svf.directions", 16),
+            Double.parseDouble(System.getProperty("svf.radius", "2.5")),
+            Double.parseDouble(System.getProperty("svf.exaggeration", "1")));
+    // Mosaic (VRT with overview pyramid) of every product, updated for the tiles of this run in
+    // batches of -Dmosaic.batch tiles. Level 9 is 128 m per pixel, one block for all of Switzerland.
+    static final boolean MOSAIC = Boolean.parseBoolean(System.getProperty("mosaic", "true"));
+    static final int MOSAIC_LEVELS = Integer.getInteger("mosaic.levels", 9);
+    static final int MOSAIC_BATCH = Integer.getInteger("mosaic.batch", 64);
+    static final int MOSAIC_THREADS = Integer.getInteger("threads.mosaic", Math.max(1, CORES / 2));
+    static final List<String> STAGES = stages();
+    // Cost estimate of a tile: PDAL keeps every point in memory (plus HeightAboveGround and
+    // the neighbour search), the Java stages hold a handful of full tile grids.
+    static final long PDAL_BYTES_PER_POINT = Long.getLong("budget.pdal.bytesPerPoint", 120);
+    static final int JVM_GRIDS_PER_TILE = 12;
+    // Zipped LAS (point format 6, 30 bytes) compresses to roughly 8 bytes per point.
+    static final double POINTS_PER_ZIP_BYTE = 1 / 8.0;
+    static final long DEFAULT_POINTS = Long.getLong("budget.points.default", 30_000_000L);
+
+    static Manifest manifest;
+    static ResourceBudget budget;
+    static Metrics metrics;
+    static StagedExecutor<Tile> executor;
+    static WorkerPool helpers;
+    static SourceCache sourceCache;
+    // Tiles of this run by key, the neighbour gate and cache for the halo.
+    static final Map<Long, Tile> tiles = new ConcurrentHashMap<>();
+    static Halo.Gate gate;
+    static Halo.Cache cache;
+    // Every tile of the run, also those of other workers' chunks.
+    static Set<Long> selected;
+    // Distributed mode: tiles held before fill until the neighbours of other workers are on disk, with the deadline.
+    static final Map<Tile, Long> parked = new ConcurrentHashMap<>();
+    static ScheduledExecutorService parkedPoller;
+    static Mosaic mosaic;
+    // Distributed mode only: the leases and the tiles of each claimed chunk still in progress.
+    static Leases leases;
+    static final Map<String, AtomicInteger> chunkRemaining = new ConcurrentHashMap<>();
+    static final Set<String> chunkFailed = ConcurrentHashMap.newKeySet();
+
+
+    public static void main(String... args) throws IOException, URISyntaxException, InterruptedException {
+        // A retry list written by the previous run can be passed instead of the full CSV.
+        String csvFileName = args.length > 0 ? args[0] : CSV_FILE_NAME;
         List<String> fileLocations;
-        try (Stream<String> lines = Files.lines(Paths.get(CSV_FILE_NAME))) {
+        try (Stream<String> lines = Files.lines(Paths.get(csvFileName))) {
             fileLocations = lines.collect(Collectors.toList());
         }
 
-        int maxThreads = 24; 
-        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        TileGrid grid = new TileGrid(fileLocations);
+        selected = grid.select(BBOX, POLYGON, CHANGED, HALO > 0);
+        if (selected.size() < grid.keys().size()) {
+            err.println("-- selected " + selected.size() + " of " + grid.keys().size() + " tiles");
+        }
 
-        for (String fileLocation : fileLocations) {
-            if (fileLocation.length() == 0 || fileLocation.startsWith("#")) {
-                continue;
+        manifest = new Manifest(Paths.get(MANIFEST_FILE), STAGES);
+        if (CHANGED != null) {
+            Set<Long> changed = TileGrid.parseTiles(CHANGED);
+            for (long key : selected) {
+                manifest.invalidate(grid.location(key), changed.contains(key) ? STAGES.get(0) : "fill");
+            }
+        }
+        metrics = new Metrics("preprocess", Paths.get(METRICS_FILE), Paths.get(PROMETHEUS_FILE));
+
+        budget = ResourceBudget.detect();
+        if (!"pdal".equals(RASTERIZER) || NATIVE_FILL || NATIVE_TERRAIN) {
+            // Grids of the Java stages live on the heap.
+            budget = budget.limitMemory(Runtime.getRuntime().maxMemory());
+        }
+        if (HALO > 0) {
+            // The cache comes out of the heap budget. On a small heap it gets at most half of it,
+            // the tiles the other half, instead of leaving the tiles nothing (or less).
+            long cacheBytes = Math.min(HALO_CACHE_BYTES, budget.memory / 2);
+            if (cacheBytes < HALO_CACHE_BYTES) {
+                err.println("-- halo cache shrunk to " + (cacheBytes >> 20) + " MB to fit the budget of " + (budget.memory >> 20) + " MB, raise -Xmx for " + (HALO_CACHE_BYTES >> 20) + " MB");
             }
+            cache = new Halo.Cache(cacheBytes);
+            budget = budget.limitMemory(budget.memory - cacheBytes);
+        }
+        err.println("-- budget: " + budget);
 
-            executor.execute(() -> {
-                try {
-                    makeitso(fileLocation);
-                } catch (Exception e) {
-                    e.printStackTrace();
+        if (LEASE_DIRECTORY != null) {
+            leases = Leases.open(Paths.get(LEASE_DIRECTORY), WORKER, LEASE_HEARTBEAT, LEASE_TIMEOUT);
+            err.println("-- worker: " + WORKER);
+        }
+        if (STREAMING_FETCH && SOURCE_CACHE_BYTES > 0) {
+            sourceCache = new SourceCache(Paths.get(SOURCE_CACHE_DIRECTORY), SOURCE_CACHE_BYTES, "." + SOURCE_CACHE_FORMAT);
+            err.println("-- source cache: " + sourceCache);
+        }
+        if (HELPERS > 0) {
+            helpers = new WorkerPool(List.of(HELPERS_COMMAND.split(" ")), HELPERS);
+            err.println("-- helpers: " + HELPERS + " x " + HELPERS_COMMAND);
+        }
+        if (MOSAIC) {
+            mosaic = new Mosaic(Paths.get(MOSAIC_DIRECTORY), Paths.get(MOSAIC_DIRECTORY, "dirty" + WORKER_SUFFIX + ".txt"), mosaicProducts(), MOSAIC_LEVELS, TILE_PIXELS, RESOLUTION, MOSAIC_THREADS);
+        }
+
+        executor = new StagedExecutor<>() {
+            @Override
+            protected void started(Tile tile, String stage, long queueWaitNanos) {
+                tile.queueWaitNanos = queueWaitNanos;
+            }
+
+            @Override
+            protected void failed(Tile tile, String stage, Exception e) {
+                super.failed(tile, stage, e);
+                tile.release();
+                finished(tile, false);
+                if (HALO > 0) {
+                    // Neighbours waiting for this tile go ahead without it. Runs on the worker of the
+                    // failed stage, so the resume must not block on the fill queue.
+                    try {
+                        for (long key : gate.failed(tile.key)) {
+                            toFill(tiles.get(key));
+                        }
+                        deleteRasterized(gate.deletable(tile.key));
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
                 }
+            }
+        };
+        for (String stage : STAGES) {
+            executor.stage(stage, threads(stage), QUEUE_CAPACITY, step(stage, task(stage)));
+        }
+        executor.start();
+        if (HALO > 0 && leases != null) {
+            parkedPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "halo-parked");
+                t.setDaemon(true);
+                return t;
+            });
+            parkedPoller.scheduleWithFixedDelay(preprocess::pollParked, 5, 5, TimeUnit.SECONDS);
+        }
+
+        List<Tile> all = new ArrayList<>();
+        for (long key : selected) {
+            all.add(new Tile(grid.location(key)));
+        }
+        List<Tile> ordered = order(all);
+        gate = new Halo.Gate(List.of());
+        if (leases == null) {
+            submit(ordered, null);
+        } else {
+            // Every worker derives the same chunks from the same CSV and takes those nobody holds.
+            // A selection gets its own lease names, so chunks done in a full run do not count.
+            String selection = BBOX == null && POLYGON == null && CHANGED == null ? "" : "_" + Integer.toHexString(Objects.hash(BBOX, POLYGON, CHANGED));
+            Map<String, List<Tile>> chunks = new LinkedHashMap<>();
+            for (int from = 0; from < ordered.size(); from += LEASE_CHUNK) {
+                List<Tile> chunk = ordered.subList(from, Math.min(ordered.size(), from + LEASE_CHUNK));
+                chunks.put("chunk_" + TileGrid.id(chunk.get(0).key) + selection, chunk);
+            }
+            // Keeps polling the chunks of other workers until they are done, to take them over if a worker dies.
+            leases.claimAll(chunks.keySet(), LEASE_HEARTBEAT, name -> {
+                err.println("-- claimed " + name + " (" + chunks.get(name).size() + " tiles)");
+                submit(chunks.get(name), name);
             });
         }
         executor.shutdown();
+        if (parkedPoller != null) {
+            parkedPoller.shutdownNow();
+        }
+        if (cache != null) {
+            err.println("-- halo cache: " + cache);
+        }
+        if (sourceCache != null) {
+            err.println("-- source cache: " + sourceCache);
+        }
+        if (mosaic != null) {
+            flushMosaic();
+        }
+        if (leases != null) {
+            leases.close();
+        }
+        if (helpers != null) {
+            helpers.close();
+        }
+
+        manifest.writeRetryList();
+        manifest.close();
+        metrics.summary();
+        metrics.close();
     }
 
-    private static void makeitso(String fileLocation) throws IOException, URISyntaxException {
-        String fileName = fileLocation.substring(fileLocation.lastIndexOf("/")+1);
-        String lasFileName = fileName.substring(20,29).replace("-", "_")+".las";
-        err.println("-- Download: " + fileLocation);
-        URI uri = new URI(fileLocation);
-        File zipFile = Paths.get(ZIP_DIRECTORY).resolve(fileName).toFile();
-        ReadableByteChannel readableByteChannel = Channels.newChannel(uri.toURL().openStream());
-        try(FileOutputStream fileOutputStream = new FileOutputStream(zipFile);) {
-            FileChannel fileChannel = fileOutputStream.getChannel();
-            fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);    
-        }
-        
-        err.println("-- Unzip: " + zipFile);
-        new ZipFile(zipFile).extractFile(lasFileName, Paths.get(ZIP_DIRECTORY).toString());
-
-        String lasFile = Paths.get(ZIP_DIRECTORY, lasFileName).toFile().getAbsolutePath();
-        String lazFile = Paths.get(LAZ_DIRECTORY, lasFileName.replace(".las", ".laz")).toFile().getAbsolutePath();
-        // err.println("-- las2laz: " + lasFile);
-        // try {
-        //     String cmd = "pdal pipeline las2laz.json --readers.las.filename="+lasFile+" --writers.las.filename="+lazFile;
-        //     err.println(cmd);
-        //     ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-        //     Process p = pb.start();
-        //     {
-        //         BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        //         String line = null;
-        //         while ((line = is.readLine()) != null)
-        //             err.println(line);
-        //         p.waitFor();
-        //     }
-            
-        //     if (p.exitValue() != 0) {
-        //         err.println("Error while processing: " + lasFile);
-        //     }
-        // } catch (IOException | InterruptedException e) {
-        //         e.printStackTrace();
-        //         err.println(e.getMessage());
-        // }
-
-        String dsmOrigFile = Paths.get(DSM_DIRECTORY, "orig_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        Double minE = Double.valueOf(lasFileName.substring(0, 4) + "000");
-        Double minN = Double.valueOf(lasFileName.substring(5, 9) + "000");
-        Double maxE = minE + 1000 - 0.25;
-        Double maxN = minN + 1000 - 0.25;            
-        String bounds = "(["+minE.toString()+","+maxE.toString()+"],["+minN.toString()+","+maxN.toString()+"])"; 
-        err.println("-- laz2dsm: " + lasFile);
-        try {
-            String cmd = "pdal pipeline laz2dsm.json --readers.las.filename="+lasFile+" --writers.gdal.filename="+dsmOrigFile+" --writers.gdal.bounds="+bounds;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+    /**
+     * Submits the tiles that still have something to do. All tiles of a batch are
+     * known to the gate before the first one is rasterized, so it knows whom to wait for.
+     */
+    static void submit(List<Tile> batch, String chunk) throws IOException, InterruptedException {
+        List<Tile> run = new ArrayList<>();
+        for (Tile tile : batch) {
+            tile.pending = manifest.pending(tile.fileLocation, tile.outputs());
+            if (tile.pending.isEmpty()) {
+                err.println("-- skip (done): " + tile.fileLocation);
+                continue;
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + lasFile);
+            tile.chunk = chunk;
+            run.add(tile);
+            tiles.put(tile.key, tile);
+        }
+        gate.add(run.stream().map(t -> t.key).toList());
+        if (chunk != null) {
+            if (run.isEmpty()) {
+                leases.release(chunk, true);
+                return;
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
+            chunkRemaining.put(chunk, new AtomicInteger(run.size()));
+        }
+        for (Tile tile : run) {
+            executor.submit(tile);
         }
+    }
 
-        String dsmFillNoDataUncompressedFile = Paths.get(DSM_DIRECTORY, "filled_no_data_uncompressed_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- fill no data dsm");
-        try {
-            String cmd = "gdal_fillnodata.py -md 500 -si 2 "+dsmOrigFile+" "+dsmFillNoDataUncompressedFile;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
-            }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dsmOrigFile);
+    /**
+     * A tile left the pipeline. The lease of its chunk is released when the last
+     * tile is through; it is marked done only if none failed, otherwise another
+     * worker (or the next run) tries again.
+     */
+    static void finished(Tile tile, boolean ok) {
+        if (tile.chunk == null) {
+            return;
+        }
+        if (!ok) {
+            chunkFailed.add(tile.chunk);
+        }
+        if (chunkRemaining.get(tile.chunk).decrementAndGet() == 0) {
+            try {
+                leases.release(tile.chunk, !chunkFailed.contains(tile.chunk));
+            } catch (IOException e) {
+                err.println("-- lease not released: " + tile.chunk + ": " + e);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
         }
+    }
 
-        String dsmFillNoDataFile = Paths.get(DSM_DIRECTORY, "filled_no_data_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- compress dsm");
-        try {
-            String cmd = "gdal_translate -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2 " + dsmFillNoDataUncompressedFile + " " + dsmFillNoDataFile;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+    /**
+     * Tiles in submission order. Along a Hilbert curve (or row by row) the neighbours
+     * of a tile are rasterized shortly before or after it, so it waits little for them
+     * and they are usually still in the halo cache.
+     */
+    static List<Tile> order(List<Tile> run) {
+        if (run.isEmpty() || ORDER.equals("csv")) {
+            return run;
+        }
+        List<Tile> ordered = new ArrayList<>(run);
+        if (ORDER.equals("rows")) {
+            ordered.sort(Comparator.comparingInt((Tile t) -> -Halo.n(t.key)).thenComparingInt(t -> Halo.e(t.key)));
+            return ordered;
+        }
+        int minE = ordered.stream().mapToInt(t -> Halo.e(t.key)).min().getAsInt();
+        int minN = ordered.stream().mapToInt(t -> Halo.n(t.key)).min().getAsInt();
+        int extent = ordered.stream().mapToInt(t -> Math.max(Halo.e(t.key) - minE, Halo.n(t.key) - minN)).max().getAsInt() + 1;
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(extent - 1));
+        ordered.sort(Comparator.comparingLong(t -> Halo.hilbert(bits, Halo.e(t.key) - minE, Halo.n(t.key) - minN)));
+        return ordered;
+    }
+
+    private static List<String> stages() {
+        List<String> stages = new ArrayList<>();
+        stages.add("fetch");
+        if (!STREAMING_FETCH) {
+            stages.add("unzip");
+        }
+        stages.add("rasterize");
+        stages.add("fill");
+        if (!NATIVE_FILL) {
+            stages.add("compress");
+        }
+        stages.add("derive");
+        if (MOSAIC) {
+            stages.add("mosaic");
+        }
+        stages.add("cleanup");
+        return List.copyOf(stages);
+    }
+
+    private static StagedExecutor.Task<Tile> task(String stage) {
+        return switch (stage) {
+            case "fetch" -> STREAMING_FETCH ? preprocess::fetchStreaming : preprocess::fetch;
+            case "unzip" -> preprocess::unzip;
+            case "rasterize" -> "pdal".equals(RASTERIZER) ? preprocess::rasterize : preprocess::rasterizeNative;
+            case "fill" -> NATIVE_FILL ? preprocess::fillNative : preprocess::fill;
+            case "compress" -> preprocess::compress;
+            case "derive" -> preprocess::derive;
+            case "mosaic" -> preprocess::mosaic;
+            case "cleanup" -> preprocess::cleanup;
+            default -> throw new IllegalArgumentException(stage);
+        };
+    }
+
+    private static int threads(String stage) {
+        return switch (stage) {
+            case "fetch" -> FETCH_THREADS;
+            case "unzip" -> UNZIP_THREADS;
+            case "rasterize" -> RASTERIZE_THREADS;
+            case "fill" -> FILL_THREADS;
+            case "compress" -> COMPRESS_THREADS;
+            case "derive" -> DERIVE_THREADS;
+            default -> 1;
+        };
+    }
+
+    /**
+     * Runs a stage through the manifest. A tile reserves its cost before rasterize
+     * (even if rasterize itself is skipped, the later stages still need it) and
+     * releases it after the last stage or when a stage fails.
+     */
+    private static StagedExecutor.Task<Tile> step(String stage, StagedExecutor.Task<Tile> task) {
+        int index = STAGES.indexOf(stage);
+        return tile -> {
+            if (tile.chunk != null && !leases.holds(tile.chunk)) {
+                // Taken over by another worker (our heartbeat did not get through in time): it redoes the chunk.
+                throw new IOException("Lease lost, dropping the tile: " + tile.chunk);
+            }
+            Map<String, List<Path>> outputs = tile.outputs();
+            // Bytes in: what the previous stage wrote.
+            long bytesIn = index > 0 ? Metrics.size(outputs.get(STAGES.get(index - 1))) : 0;
+            Metrics.Sample sample = metrics.start(tile.fileLocation, stage, tile.queueWaitNanos, bytesIn);
+            try {
+                // Inside the try: a failing cost estimate or an interrupted wait still finishes the sample.
+                if (stage.equals("rasterize") || (HALO > 0 && stage.equals("fill"))) {
+                    ResourceBudget.Cost cost = cost(tile);
+                    err.println("-- admit (" + cost.cores() + " cores, " + (cost.memory() >> 20) + " MB): " + tile);
+                    long waiting = nanoTime();
+                    tile.reservation = budget.acquire(cost);
+                    sample.admissionWait(nanoTime() - waiting);
+                }
+                manifest.run(tile.fileLocation, stage, tile.pending, outputs.get(stage), () -> task.run(tile));
+            } catch (Exception e) {
+                metrics.finish(sample, "failed", Metrics.size(outputs.get(stage)));
+                throw e;
+            }
+            metrics.finish(sample, tile.pending.contains(stage) ? "done" : "skipped", Metrics.size(outputs.get(stage)));
+            if (HALO > 0 && stage.equals("rasterize")) {
+                // Wait for the neighbours before filling, without holding on to the budget.
+                tile.release();
+                List<Long> ready = gate.rasterized(tile.key);
+                for (long key : ready) {
+                    if (key != tile.key) {
+                        toFill(tiles.get(key));
+                    }
+                }
+                if (!ready.contains(tile.key)) {
+                    executor.hold(tile);
+                } else if (!waitingFor(tile).isEmpty()) {
+                    executor.hold(tile);
+                    park(tile);
+                }
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dsmFillNoDataFile);
+            if (HALO > 0 && stage.equals("fill")) {
+                deleteRasterized(gate.filled(tile.key));
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
+            if (stage.equals(STAGES.get(STAGES.size() - 1))) {
+                tile.release();
+                if (!tile.missingNeighbours.isEmpty()) {
+                    // The halo lacked neighbours of the run, so the tile has seams: fill and
+                    // the stages after it run again, and the tile goes to the retry list.
+                    manifest.invalidate(tile.fileLocation, "fill");
+                    manifest.failed(tile.fileLocation, "fill", new IOException("Halo without neighbours " + ids(tile.missingNeighbours)));
+                }
+                finished(tile, tile.missingNeighbours.isEmpty());
+            }
+        };
+    }
+
+    /**
+     * Estimated cores and memory of a tile from rasterize to cleanup. The point count
+     * comes from the LAS header, or from the zip size if only the zip is there.
+     */
+    static ResourceBudget.Cost cost(Tile tile) throws IOException {
+        long points;
+        if (Files.exists(Paths.get(tile.lasFile))) {
+            points = LasReader.pointCount(Paths.get(tile.lasFile));
+        } else if (tile.zipFile.exists()) {
+            points = (long) (tile.zipFile.length() * POINTS_PER_ZIP_BYTE);
+        } else {
+            points = DEFAULT_POINTS;
+        }
+        long extended = TILE_PIXELS + 2L * HALO;
+        long memory = JVM_GRIDS_PER_TILE * extended * extended * Float.BYTES;
+        if ("pdal".equals(RASTERIZER)) {
+            memory += points * PDAL_BYTES_PER_POINT;
+        } else {
+            // Point indices bucketed by row band (Rasterizer.mean).
+            memory += points * Integer.BYTES;
         }
+        return new ResourceBudget.Cost(1, memory);
+    }
 
-        String dsmShadedReliefFile = Paths.get(DSM_SHADED_RELIEF_DIRECTORY, lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- hillshade dsm");
-        try {
-            String cmd = "gdaldem hillshade "+dsmFillNoDataFile+" "+dsmShadedReliefFile+" -compute_edges -alt 55 -multidirectional -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2";
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+    /**
+     * File names of one 1 km tile. Handed from stage to stage.
+     */
+    static class Tile {
+        final String fileLocation;
+        final String fileName;
+        final String lasFileName;
+        final String bounds;
+        // Kilometre coordinates of the lower left corner, see Halo.key.
+        final long key;
+        final double minE;
+        final double minN;
+        final File zipFile;
+        final String lasFile;
+        final String lazFile;
+        final String dsmOrigFile;
+        final String dtmOrigFile;
+        final String nDsmBuildingsFile;
+        final String nDsmVegetationFile;
+        final String dsmFillNoDataUncompressedFile;
+        final String dsmFillNoDataFile;
+        final String dsmShadedReliefFile;
+        final String dtmFillNoDataUncompressedFile;
+        final String dtmFillNoDataFile;
+        final String dtmShadedReliefFile;
+        final String dtmSlopeFile;
+        final String dsmSvfFile;
+        // Stages still to run, from the manifest.
+        Set<String> pending;
+        // Neighbours of the run that were missing from a halo of this tile.
+        final Set<Long> missingNeighbours = ConcurrentHashMap.newKeySet();
+        // Rasters handed from stage to stage in memory, so the next stage does not decode them again.
+        // With a halo the filled rasters include the halo.
+        Raster dsmOrig;
+        Raster dsmFilled;
+        Raster dtmFilled;
+        // Lease the tile was claimed under (distributed mode).
+        String chunk;
+        // Share of the resource budget while the tile is between rasterize and cleanup.
+        ResourceBudget.Reservation reservation;
+        // Time the tile waited in front of the current stage.
+        long queueWaitNanos;
+
+        Tile(String fileLocation) {
+            this.fileLocation = fileLocation;
+            fileName = fileLocation.substring(fileLocation.lastIndexOf("/")+1);
+            key = TileGrid.key(fileLocation);
+            lasFileName = Halo.e(key)+"_"+Halo.n(key)+".las";
+            String tifFileName = lasFileName.replace(".las", ".tif");
+
+            minE = Halo.e(key) * 1000.0;
+            minN = Halo.n(key) * 1000.0;
+            Double maxE = minE + 1000 - 0.25;
+            Double maxN = minN + 1000 - 0.25;
+            bounds = "(["+minE+","+maxE.toString()+"],["+minN+","+maxN.toString()+"])";
+
+            zipFile = Paths.get(ZIP_DIRECTORY).resolve(fileName).toFile();
+            lasFile = Paths.get(ZIP_DIRECTORY, lasFileName).toFile().getAbsolutePath();
+            lazFile = Paths.get(LAZ_DIRECTORY, lasFileName.replace(".las", ".laz")).toFile().getAbsolutePath();
+            dsmOrigFile = Paths.get(DSM_DIRECTORY, "orig_"+tifFileName).toFile().getAbsolutePath();
+            dtmOrigFile = Paths.get(DTM_DIRECTORY, "orig_"+tifFileName).toFile().getAbsolutePath();
+            nDsmBuildingsFile = Paths.get(NDSM_BUILDINGS_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+            nDsmVegetationFile = Paths.get(NDSM_VEGETATION_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+            dsmFillNoDataUncompressedFile = Paths.get(DSM_DIRECTORY, "filled_no_data_uncompressed_"+tifFileName).toFile().getAbsolutePath();
+            dsmFillNoDataFile = Paths.get(DSM_DIRECTORY, "filled_no_data_"+tifFileName).toFile().getAbsolutePath();
+            dsmShadedReliefFile = Paths.get(DSM_SHADED_RELIEF_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+            dtmFillNoDataUncompressedFile = Paths.get(DTM_DIRECTORY, "filled_no_data_uncompressed_"+tifFileName).toFile().getAbsolutePath();
+            dtmFillNoDataFile = Paths.get(DTM_DIRECTORY, "filled_no_data_"+tifFileName).toFile().getAbsolutePath();
+            dtmShadedReliefFile = Paths.get(DTM_SHADED_RELIEF_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+            dtmSlopeFile = Paths.get(DTM_SLOPE_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+            dsmSvfFile = Paths.get(DSM_SVF_DIRECTORY, tifFileName).toFile().getAbsolutePath();
+        }
+
+        /**
+         * Files each stage produces. Recorded in the manifest and checked on restart.
+         */
+        Map<String, List<Path>> outputs() {
+            Map<String, List<Path>> outputs = new LinkedHashMap<>();
+            if (STREAMING_FETCH) {
+                outputs.put("fetch", List.of(Paths.get(lasFile)));
+            } else {
+                outputs.put("fetch", List.of(zipFile.toPath()));
+                outputs.put("unzip", List.of(Paths.get(lasFile)));
+            }
+            outputs.put("rasterize", List.of(Paths.get(dsmOrigFile), Paths.get(dtmOrigFile), Paths.get(nDsmBuildingsFile), Paths.get(nDsmVegetationFile)));
+            if (NATIVE_FILL) {
+                outputs.put("fill", List.of(Paths.get(dsmFillNoDataFile), Paths.get(dtmFillNoDataFile)));
+            } else {
+                outputs.put("fill", List.of(Paths.get(dsmFillNoDataUncompressedFile), Paths.get(dtmFillNoDataUncompressedFile)));
+                outputs.put("compress", List.of(Paths.get(dsmFillNoDataFile), Paths.get(dtmFillNoDataFile)));
+            }
+            List<Path> derived = new ArrayList<>(List.of(Paths.get(dsmShadedReliefFile), Paths.get(dtmShadedReliefFile), Paths.get(dtmSlopeFile)));
+            if (SVF) {
+                derived.add(Paths.get(dsmSvfFile));
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dsmFillNoDataFile);
+            outputs.put("derive", derived);
+            if (MOSAIC) {
+                outputs.put("mosaic", List.of());
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
+            outputs.put("cleanup", List.of());
+            return outputs;
         }
 
-        String dtmOrigFile = Paths.get(DTM_DIRECTORY, "orig_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- laz2dtm: " + lasFile);
-        try {
-            String cmd = "pdal pipeline laz2dtm.json --readers.las.filename="+lasFile+" --writers.gdal.filename="+dtmOrigFile+" --writers.gdal.bounds="+bounds;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
-            }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + lasFile);
+        void release() {
+            if (reservation != null) {
+                reservation.close();
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
+            dsmOrig = null;
+            dsmFilled = null;
+            dtmFilled = null;
         }
 
-        String dtmFillNoDataUncompressedFile = Paths.get(DTM_DIRECTORY, "filled_no_data_uncompressed_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- fill no data dtm");
+        @Override
+        public String toString() {
+            return fileLocation;
+        }
+    }
+
+    private static void fetch(Tile tile) throws IOException, URISyntaxException {
+        err.println("-- Download: " + tile.fileLocation);
+        URI uri = new URI(tile.fileLocation);
+        ReadableByteChannel readableByteChannel = Channels.newChannel(uri.toURL().openStream());
+        try(FileOutputStream fileOutputStream = new FileOutputStream(tile.zipFile);) {
+            FileChannel fileChannel = fileOutputStream.getChannel();
+            fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
+        }
+    }
+
+    static void fetchStreaming(Tile tile) throws IOException, URISyntaxException, InterruptedException {
+        URI uri = new URI(tile.fileLocation);
+        if (sourceCache == null) {
+            err.println("-- Download (streaming): " + tile.fileLocation);
+            StreamingFetch.fetchEntry(uri, tile.lasFileName, Paths.get(tile.lasFile));
+            return;
+        }
+        SourceCache.Entry cached = sourceCache.get(uri);
+        Path zipCopy = SOURCE_CACHE_FORMAT.equals("zip") ? sourceCache.part(uri) : null;
         try {
-            String cmd = "gdal_fillnodata.py -md 500 -si 2 "+dtmOrigFile+" "+dtmFillNoDataUncompressedFile;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+            StreamingFetch.Result result;
+            try {
+                err.println("-- Download (streaming" + (cached != null ? ", if modified" : "") + "): " + tile.fileLocation);
+                result = StreamingFetch.fetchEntry(uri, tile.lasFileName, Paths.get(tile.lasFile),
+                        cached == null ? null : cached.etag(), cached == null ? null : cached.lastModified(), zipCopy);
+            } catch (IOException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                err.println("-- Server not reachable, using the cached copy (" + e.getMessage() + "): " + tile.fileLocation);
+                result = null;
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dtmOrigFile);
+            if (result == null || result.notModified()) {
+                try {
+                    sourceCache.used(cached);
+                    restoreSource(tile, cached.file());
+                    return;
+                } catch (NoSuchFileException e) {
+                    if (result == null) {
+                        throw e;
+                    }
+                    err.println("-- Cached copy evicted meanwhile, downloading again: " + tile.fileLocation);
+                    result = StreamingFetch.fetchEntry(uri, tile.lasFileName, Paths.get(tile.lasFile), null, null, zipCopy);
+                }
+            }
+            if (zipCopy != null) {
+                sourceCache.put(uri, zipCopy, result.etag(), result.lastModified());
+            } else {
+                Path laz = sourceCache.part(uri);
+                try {
+                    exec("pdal pipeline las2laz.json --readers.las.filename="+tile.lasFile+" --writers.las.filename="+laz, tile.lasFile);
+                    sourceCache.put(uri, laz, result.etag(), result.lastModified());
+                } finally {
+                    Files.deleteIfExists(laz);
+                }
+            }
+        } finally {
+            if (zipCopy != null) {
+                Files.deleteIfExists(zipCopy);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
         }
+    }
 
-        String dtmFillNoDataFile = Paths.get(DTM_DIRECTORY, "filled_no_data_"+lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- compress dtm");
+    /**
+     * The LAS file of a tile from its cached zip or LAZ.
+     */
+    private static void restoreSource(Tile tile, Path cached) throws IOException, InterruptedException {
+        err.println("-- Source cache: " + cached.getFileName() + " -> " + tile.lasFileName);
+        if (SOURCE_CACHE_FORMAT.equals("zip")) {
+            StreamingFetch.extractEntry(cached, tile.lasFileName, Paths.get(tile.lasFile));
+            return;
+        }
+        Path part = Paths.get(tile.lasFile + "." + UUID.randomUUID() + ".part.las");
         try {
-            String cmd = "gdal_translate -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2 " + dtmFillNoDataUncompressedFile + " " + dtmFillNoDataFile;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+            exec("pdal translate " + cached + " " + part, cached.toString());
+            Files.move(part, Paths.get(tile.lasFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    private static void unzip(Tile tile) throws IOException {
+        err.println("-- Unzip: " + tile.zipFile);
+        new ZipFile(tile.zipFile).extractFile(tile.lasFileName, Paths.get(ZIP_DIRECTORY).toString());
+        Files.delete(tile.zipFile.toPath());
+
+        // err.println("-- las2laz: " + tile.lasFile);
+        // exec("pdal pipeline las2laz.json --readers.las.filename="+tile.lasFile+" --writers.las.filename="+tile.lazFile, tile.lasFile);
+    }
+
+    private static void rasterize(Tile tile) throws IOException, InterruptedException {
+        // Reads the points once and writes DSM, DTM, buildings and vegetation in the same pass.
+        // HeightAboveGround is computed once and shared by the two nDSM writers.
+        err.println("-- laz2products: " + tile.lasFile);
+        exec("pdal pipeline laz2products.json --readers.las.filename="+tile.lasFile+" --stage.dsm.filename="+tile.dsmOrigFile+" --stage.dtm.filename="+tile.dtmOrigFile
+                +" --stage.buildings.filename="+tile.nDsmBuildingsFile+" --stage.vegetation.filename="+tile.nDsmVegetationFile+" --writers.gdal.bounds="+tile.bounds, tile.lasFile);
+    }
+
+    /**
+     * Same products as laz2products.json from one memory-mapped LAS file: DSM (class &gt; 1)
+     * and DTM (class 2) in the first pass, then buildings (6) and vegetation (3) as height
+     * above the filled DTM in a second pass. The filled DTM is kept for the fill stage.
+     */
+    private static void rasterizeNative(Tile tile) throws IOException {
+        err.println("-- rasterize: " + tile.lasFile);
+        double maxN = tile.minN + 1000;
+        try (LasReader las = LasReader.open(Paths.get(tile.lasFile))) {
+            Raster[] surfaces = Rasterizer.mean(las, tile.minE, maxN, TILE_PIXELS, TILE_PIXELS, RESOLUTION, List.of(
+                    Rasterizer.Product.of(c -> c > 1),
+                    Rasterizer.Product.of(c -> c == 2)));
+            tile.dsmOrig = surfaces[0];
+            GeoTiff.write(Paths.get(tile.dsmOrigFile), surfaces[0], GeoTiff.SampleType.FLOAT32, false);
+            GeoTiff.write(Paths.get(tile.dtmOrigFile), surfaces[1], GeoTiff.SampleType.FLOAT32, false);
+
+            // Ground below roofs has no class 2 points, hence the filled DTM (hag_nn uses the nearest ground point).
+            tile.dtmFilled = FillNoData.fill(surfaces[1], 500, 2);
+            Raster[] heights = Rasterizer.mean(las, tile.minE, maxN, TILE_PIXELS, TILE_PIXELS, RESOLUTION, List.of(
+                    Rasterizer.Product.aboveGround(c -> c == 6, tile.dtmFilled),
+                    Rasterizer.Product.aboveGround(c -> c == 3, tile.dtmFilled)));
+            GeoTiff.write(Paths.get(tile.nDsmBuildingsFile), heights[0], GeoTiff.SampleType.FLOAT32);
+            GeoTiff.write(Paths.get(tile.nDsmVegetationFile), heights[1], GeoTiff.SampleType.FLOAT32);
+
+            if (HALO > 0) {
+                // Filled again with the halo once the neighbours are there.
+                cache.put("dsm:" + tile.key, surfaces[0]);
+                cache.put("dtm:" + tile.key, surfaces[1]);
+                tile.dsmOrig = null;
+                tile.dtmFilled = null;
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dtmFillNoDataFile);
+        }
+    }
+
+    private static void fill(Tile tile) throws IOException, InterruptedException {
+        err.println("-- fill no data dsm");
+        exec("gdal_fillnodata.py -md 500 -si 2 "+tile.dsmOrigFile+" "+tile.dsmFillNoDataUncompressedFile, tile.dsmOrigFile);
+
+        err.println("-- fill no data dtm");
+        exec("gdal_fillnodata.py -md 500 -si 2 "+tile.dtmOrigFile+" "+tile.dtmFillNoDataUncompressedFile, tile.dtmOrigFile);
+    }
+
+    /**
+     * Same as {@code gdal_fillnodata.py -md 500 -si 2}, but in memory and written
+     * compressed straight away, without the uncompressed intermediate.
+     */
+    private static void fillNative(Tile tile) throws Exception {
+        if (HALO > 0) {
+            err.println("-- fill no data dsm (halo " + HALO_METERS + " m)");
+            tile.dsmFilled = FillNoData.fill(extended(tile, "dsm", "dsm_filled"), 500, 2);
+            GeoTiff.write(Paths.get(tile.dsmFillNoDataFile), Halo.crop(tile.dsmFilled, HALO), GeoTiff.SampleType.FLOAT32);
+
+            err.println("-- fill no data dtm (halo " + HALO_METERS + " m)");
+            tile.dtmFilled = FillNoData.fill(extended(tile, "dtm", "dtm_filled"), 500, 2);
+            GeoTiff.write(Paths.get(tile.dtmFillNoDataFile), Halo.crop(tile.dtmFilled, HALO), GeoTiff.SampleType.FLOAT32);
+            return;
+        }
+        err.println("-- fill no data dsm");
+        Raster dsm = tile.dsmOrig != null ? tile.dsmOrig : GeoTiff.read(Paths.get(tile.dsmOrigFile));
+        tile.dsmFilled = FillNoData.fill(dsm, 500, 2);
+        tile.dsmOrig = null;
+        GeoTiff.write(Paths.get(tile.dsmFillNoDataFile), tile.dsmFilled, GeoTiff.SampleType.FLOAT32);
+
+        err.println("-- fill no data dtm");
+        if (tile.dtmFilled == null) {
+            tile.dtmFilled = FillNoData.fill(GeoTiff.read(Paths.get(tile.dtmOrigFile)), 500, 2);
+        }
+        GeoTiff.write(Paths.get(tile.dtmFillNoDataFile), tile.dtmFilled, GeoTiff.SampleType.FLOAT32);
+    }
+
+    private static void compress(Tile tile) throws IOException, InterruptedException {
+        err.println("-- compress dsm");
+        exec("gdal_translate -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2 " + tile.dsmFillNoDataUncompressedFile + " " + tile.dsmFillNoDataFile, tile.dsmFillNoDataFile);
+
+        err.println("-- compress dtm");
+        exec("gdal_translate -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2 " + tile.dtmFillNoDataUncompressedFile + " " + tile.dtmFillNoDataFile, tile.dtmFillNoDataFile);
+    }
+
+    private static void derive(Tile tile) throws Exception {
+        if (NATIVE_TERRAIN) {
+            // Filled rasters come from the fill stage, or are decoded once if it ran in an earlier run.
+            err.println("-- hillshade dsm");
+            Raster dsm = tile.dsmFilled != null ? tile.dsmFilled
+                    : HALO > 0 ? extended(tile, "dsm_filled", "dsm") : GeoTiff.read(Paths.get(tile.dsmFillNoDataFile));
+            GeoTiff.write(Paths.get(tile.dsmShadedReliefFile), cropHalo(Terrain.hillshade(dsm, Terrain.Hillshade.multidirectional(55))), GeoTiff.SampleType.BYTE);
+
+            if (SVF) {
+                err.println("-- sky view factor dsm");
+                GeoTiff.write(Paths.get(tile.dsmSvfFile), SkyView.toByte(cropHalo(SkyView.svf(dsm, SVF_PARAMS))), GeoTiff.SampleType.BYTE);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
+
+            Raster dtm = tile.dtmFilled != null ? tile.dtmFilled
+                    : HALO > 0 ? extended(tile, "dtm_filled", "dtm") : GeoTiff.read(Paths.get(tile.dtmFillNoDataFile));
+            err.println("-- hillshade dtm");
+            GeoTiff.write(Paths.get(tile.dtmShadedReliefFile), cropHalo(Terrain.hillshade(dtm, Terrain.Hillshade.multidirectional(50))), GeoTiff.SampleType.BYTE);
+
+            err.println("-- slope dtm");
+            GeoTiff.write(Paths.get(tile.dtmSlopeFile), cropHalo(Terrain.slope(dtm, 1)), GeoTiff.SampleType.FLOAT32);
+            tile.dsmFilled = null;
+            tile.dtmFilled = null;
+            return;
         }
 
-        String dtmShadedReliefFile = Paths.get(DTM_SHADED_RELIEF_DIRECTORY, lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
+        err.println("-- hillshade dsm");
+        exec("gdaldem hillshade "+tile.dsmFillNoDataFile+" "+tile.dsmShadedReliefFile+" -compute_edges -alt 55 -multidirectional -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2", tile.dsmFillNoDataFile);
+
         err.println("-- hillshade dtm");
+        exec("gdaldem hillshade "+tile.dtmFillNoDataFile+" "+tile.dtmShadedReliefFile+" -compute_edges -alt 50 -multidirectional -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2", tile.dtmFillNoDataFile);
+
+        err.println("-- slope dtm");
+        exec("gdaldem slope "+tile.dtmFillNoDataFile+" "+tile.dtmSlopeFile+" -compute_edges -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2", tile.dtmFillNoDataFile);
+    }
+
+    /**
+     * Products of the mosaic. The tiles stay where the stages write them.
+     */
+    static List<Mosaic.Product> mosaicProducts() {
+        List<Mosaic.Product> products = new ArrayList<>(List.of(
+                new Mosaic.Product("dsm", Paths.get(DSM_DIRECTORY), "filled_no_data_", GeoTiff.SampleType.FLOAT32, Rasterizer.NODATA),
+                new Mosaic.Product("dtm", Paths.get(DTM_DIRECTORY), "filled_no_data_", GeoTiff.SampleType.FLOAT32, Rasterizer.NODATA),
+                new Mosaic.Product("dsm_shaded_relief", Paths.get(DSM_SHADED_RELIEF_DIRECTORY), "", GeoTiff.SampleType.BYTE, Terrain.HILLSHADE_NODATA),
+                new Mosaic.Product("dtm_shaded_relief", Paths.get(DTM_SHADED_RELIEF_DIRECTORY), "", GeoTiff.SampleType.BYTE, Terrain.HILLSHADE_NODATA),
+                new Mosaic.Product("dtm_slope", Paths.get(DTM_SLOPE_DIRECTORY), "", GeoTiff.SampleType.FLOAT32, Terrain.SLOPE_NODATA),
+                new Mosaic.Product("ndsm_buildings", Paths.get(NDSM_BUILDINGS_DIRECTORY), "", GeoTiff.SampleType.FLOAT32, Rasterizer.NODATA),
+                new Mosaic.Product("ndsm_vegetation", Paths.get(NDSM_VEGETATION_DIRECTORY), "", GeoTiff.SampleType.FLOAT32, Rasterizer.NODATA)));
+        if (SVF) {
+            products.add(new Mosaic.Product("dsm_svf", Paths.get(DSM_SVF_DIRECTORY), "", GeoTiff.SampleType.BYTE, SkyView.BYTE_NODATA));
+        }
+        return products;
+    }
+
+    /**
+     * Records the tile for the mosaic and updates the mosaic once a batch is full
+     * (the rest at the end of the run).
+     */
+    private static void mosaic(Tile tile) throws IOException, InterruptedException {
+        if (mosaic.add(tile.key) >= MOSAIC_BATCH) {
+            err.println("-- mosaic update");
+            flushMosaic();
+        }
+    }
+
+    /**
+     * Updates the mosaic. In distributed mode one worker at a time, under the "mosaic" lease.
+     */
+    private static void flushMosaic() throws IOException, InterruptedException {
+        if (leases == null) {
+            mosaic.flush();
+            return;
+        }
+        while (!leases.claim("mosaic")) {
+            Thread.sleep(LEASE_HEARTBEAT.toMillis());
+        }
         try {
-            String cmd = "gdaldem hillshade "+dtmFillNoDataFile+" "+dtmShadedReliefFile+" -compute_edges -alt 50 -multidirectional -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2";
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
-            }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dtmFillNoDataFile);
+            mosaic.flush();
+        } finally {
+            leases.release("mosaic", false);
+        }
+    }
+
+    private static void cleanup(Tile tile) throws IOException {
+        // deleteIfExists: a resumed tile may have lost some of them already.
+        Files.deleteIfExists(Paths.get(tile.lasFile));
+        // Files.deleteIfExists(Paths.get(tile.lazFile));
+        Files.deleteIfExists(Paths.get(tile.dsmFillNoDataUncompressedFile));
+        Files.deleteIfExists(Paths.get(tile.dtmFillNoDataUncompressedFile));
+        // With a halo the neighbours may still need them, see deleteRasterized.
+        if (HALO == 0) {
+            Files.deleteIfExists(Paths.get(tile.dsmOrigFile));
+            Files.deleteIfExists(Paths.get(tile.dtmOrigFile));
+        }
+    }
+
+    /**
+     * A product (dsm, dtm, dsm_filled, dtm_filled) of any tile, e.g. of a neighbour.
+     */
+    static Path productFile(String product, long key) {
+        String tifFileName = Halo.e(key) + "_" + Halo.n(key) + ".tif";
+        return switch (product) {
+            case "dsm" -> Paths.get(DSM_DIRECTORY, "orig_" + tifFileName);
+            case "dtm" -> Paths.get(DTM_DIRECTORY, "orig_" + tifFileName);
+            case "dsm_filled" -> Paths.get(DSM_DIRECTORY, "filled_no_data_" + tifFileName);
+            case "dtm_filled" -> Paths.get(DTM_DIRECTORY, "filled_no_data_" + tifFileName);
+            default -> throw new IllegalArgumentException(product);
+        };
+    }
+
+    /**
+     * The tile with a halo from its neighbours. Neighbours come from the cache or are
+     * read from disk; the fallback product is used where the product is gone (the
+     * rasterized tiles of a finished neighbour are deleted, its filled ones are not).
+     */
+    static Raster extended(Tile tile, String product, String fallback) throws Exception {
+        long[] keys = Halo.neighbourhood(tile.key);
+        Raster[] rasters = new Raster[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            rasters[i] = cache.get(product + ":" + key, () -> {
+                for (String p : List.of(product, fallback)) {
+                    Path file = productFile(p, key);
+                    if (Files.exists(file)) {
+                        return GeoTiff.read(file);
+                    }
+                }
+                return null;
+            });
+        }
+        if (rasters[4] == null) {
+            throw new IOException("Missing " + product + ": " + tile);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (rasters[i] == null && selected.contains(keys[i])) {
+                tile.missingNeighbours.add(keys[i]);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
         }
+        return Halo.extend(rasters, HALO);
+    }
 
-        String dtmSlopeFile = Paths.get(DTM_SLOPE_DIRECTORY, lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- hillshade dtm");
-        try {
-            String cmd = "gdaldem slope "+dtmFillNoDataFile+" "+dtmSlopeFile+" -compute_edges -co TILED=YES -co COMPRESS=DEFLATE -co PREDICTOR=2";
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+    /**
+     * Hands a tile whose neighbours in this worker's run are rasterized (or failed)
+     * to fill, or parks it while neighbours of other workers are still missing.
+     * Called from stage workers, so it must not block.
+     */
+    static void toFill(Tile tile) {
+        if (waitingFor(tile).isEmpty()) {
+            executor.resume(tile, "fill");
+        } else {
+            park(tile);
+        }
+    }
+
+    /**
+     * Neighbours in the run that another worker rasterizes (distributed mode only)
+     * and whose rasterized or filled DSM/DTM are not on the shared disk yet. The gate
+     * only knows the tiles of the chunks this worker claimed.
+     */
+    static List<Long> waitingFor(Tile tile) {
+        List<Long> missing = new ArrayList<>();
+        if (leases == null) {
+            return missing;
+        }
+        for (long key : Halo.neighbourhood(tile.key)) {
+            if (key == tile.key || !selected.contains(key) || tiles.containsKey(key)) {
+                continue;
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + dtmFillNoDataFile);
+            boolean dsm = Files.exists(productFile("dsm", key)) || Files.exists(productFile("dsm_filled", key));
+            boolean dtm = Files.exists(productFile("dtm", key)) || Files.exists(productFile("dtm_filled", key));
+            if (!dsm || !dtm) {
+                missing.add(key);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
         }
+        return missing;
+    }
 
-        String nDsmBuildingsFile = Paths.get(NDSM_BUILDINGS_DIRECTORY, lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- ndsm buildings");
-        try {
-            String cmd = "pdal pipeline laz2buildings.json --readers.las.filename="+lasFile+" --writers.gdal.filename="+nDsmBuildingsFile+" --writers.gdal.bounds="+bounds;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
-            }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + lasFile);
+    private static void park(Tile tile) {
+        err.println("-- waiting for neighbours " + ids(waitingFor(tile)) + " of other workers: " + tile);
+        parked.put(tile, nanoTime() + HALO_WAIT.toNanos());
+    }
+
+    /**
+     * Hands the parked tiles to fill whose neighbours are there now, or that waited
+     * longer than {@code HALO_WAIT}; those are filled without the missing
+     * neighbours and run again (see {@link Tile#missingNeighbours}).
+     */
+    private static void pollParked() {
+        for (Map.Entry<Tile, Long> entry : parked.entrySet()) {
+            Tile tile = entry.getKey();
+            List<Long> missing = waitingFor(tile);
+            if (missing.isEmpty() || nanoTime() - entry.getValue() > 0) {
+                if (!missing.isEmpty()) {
+                    err.println("-- gave up waiting for neighbours " + ids(missing) + " after " + HALO_WAIT.toSeconds() + " s: " + tile);
+                }
+                parked.remove(tile);
+                executor.resume(tile, "fill");
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
         }
+    }
 
-        String nDsmVegetationFile = Paths.get(NDSM_VEGETATION_DIRECTORY, lasFileName.replace(".las", ".tif")).toFile().getAbsolutePath();
-        err.println("-- ndsm vegetation");
-        try {
-            String cmd = "pdal pipeline laz2vegetation.json --readers.las.filename="+lasFile+" --writers.gdal.filename="+nDsmVegetationFile+" --writers.gdal.bounds="+bounds;
-            err.println(cmd);
-            ProcessBuilder pb = new ProcessBuilder(cmd.split(" "));
-            Process p = pb.start();
-            {
-                BufferedReader is = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = null;
-                while ((line = is.readLine()) != null)
-                    err.println(line);
-                p.waitFor();
+    private static String ids(Collection<Long> keys) {
+        return keys.stream().map(TileGrid::id).collect(Collectors.joining(", "));
+    }
+
+    private static Raster cropHalo(Raster raster) {
+        return HALO > 0 ? Halo.crop(raster, HALO) : raster;
+    }
+
+    /**
+     * Deletes the rasterized DSM/DTM of tiles that neither they nor their neighbours need any more.
+     */
+    private static void deleteRasterized(List<Long> keys) throws IOException {
+        for (long key : keys) {
+            for (String product : List.of("dsm", "dtm")) {
+                cache.remove(product + ":" + key);
+                Files.deleteIfExists(productFile(product, key));
             }
-            
-            if (p.exitValue() != 0) {
-                err.println("Error while processing: " + lasFile);
+        }
+    }
+
+    /**
+     * Runs a command and fails the stage if it exits with an error, so the tile is
+     * not recorded as done and ends up in the retry list.
+     */
+    private static void exec(String cmd, String file) throws IOException, InterruptedException {
+        if (helpers != null) {
+            try {
+                helpers.run(cmd, EXEC_TIMEOUT);
+            } catch (IOException e) {
+                throw new IOException("Error while processing: " + file + " (" + e.getMessage() + ")", e);
             }
-        } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-                err.println(e.getMessage());
-        }
-
-        Files.delete(Paths.get(zipFile.getAbsolutePath()));
-        Files.delete(Paths.get(lasFile));
-        // Files.delete(Paths.get(lazFile));
-        Files.delete(Paths.get(dsmOrigFile));
-        Files.delete(Paths.get(dsmFillNoDataUncompressedFile));
-        Files.delete(Paths.get(dtmFillNoDataUncompressedFile));
-        Files.delete(Paths.get(dtmOrigFile));
+            return;
+        }
+        err.println(cmd);
+        int exitCode = WorkerPool.exec(cmd, EXEC_TIMEOUT);
+        if (exitCode != 0) {
+            throw new IOException("Error while processing: " + file + " (exit code " + exitCode + ")");
+        }
     }
 }
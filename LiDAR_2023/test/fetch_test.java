@@ -0,0 +1,199 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//SOURCES ../StreamingFetch.java
+
+import static java.lang.System.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * StreamingFetch.java against a local stand-in server that drops the connection
+ * in the middle of the body. The download must resume with a Range request
+ * (If-Range with the ETag) at the byte where it broke off, fall back to skipping
+ * when the server ignores ranges, retry server errors, and fail at once without
+ * retries on client errors and on a resource that changed in between.
+ *
+ * <pre>
+ * jbang test/fetch_test.java
+ * </pre>
+ */
+public class fetch_test {
+
+    static final String ENTRY = "2600_1200.las";
+
+    static byte[] las;
+    static byte[] zip;
+    // ETag of the resource (null: none), whether Range is honoured, and whether it exists.
+    static volatile String etag;
+    static volatile boolean ranges;
+    static volatile boolean exists;
+    // Responses to cut off in the middle of the body, statuses to answer the next requests with.
+    static int drops;
+    static final Deque<Integer> statuses = new ConcurrentLinkedDeque<>();
+    // Runs after a response was cut off.
+    static Runnable afterDrop = () -> {};
+    static final List<String> requests = new ArrayList<>();
+    static int failures;
+
+    public static void main(String... args) throws Exception {
+        // Fewer retries than the default, the backoff grows by a second per retry.
+        if (getProperty("fetch.retries") == null) {
+            setProperty("fetch.retries", "3");
+        }
+        las = new byte[4 << 20];
+        new Random(1).nextBytes(las);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry(ENTRY));
+            out.write(las);
+            out.closeEntry();
+        }
+        zip = bytes.toByteArray();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", fetch_test::handle);
+        server.start();
+        URI uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/swisssurface3d_2023_2600-1200_2056_5728.las.zip");
+        Path target = Files.createTempDirectory("fetch_test").resolve(ENTRY);
+
+        reset("\"v1\"", true, 2);
+        fetch("resumed with Range and If-Range", uri, target, true);
+        expect(requests.size() == 3 && requests.get(1).matches("Range bytes=\\d+- If-Range \"v1\"")
+                && requests.get(2).matches("Range bytes=\\d+- If-Range \"v1\""), "range requests " + requests);
+
+        reset(null, false, 1);
+        fetch("server ignores Range", uri, target, true);
+        expect(requests.size() == 2 && requests.get(1).startsWith("Range"), "requests " + requests);
+
+        reset("\"v1\"", true, 1);
+        afterDrop = () -> statuses.add(503);
+        fetch("503 on reopen is retried", uri, target, true);
+        expect(requests.size() == 3, "requests " + requests);
+
+        reset("\"v1\"", true, 0);
+        statuses.add(503);
+        fetch("503 on the first request is retried", uri, target, true);
+        expect(requests.equals(List.of("GET", "GET")), "requests " + requests);
+
+        reset("\"v1\"", true, 0);
+        exists = false;
+        fetch("404 on the first request: fails without retries", uri, target, false);
+        expect(requests.size() == 1, "requests " + requests);
+
+        reset("\"v1\"", true, 1);
+        afterDrop = () -> etag = "\"v2\"";
+        long start = nanoTime();
+        fetch("resource changed: fails without retries", uri, target, false);
+        expect(requests.size() == 2, "requests " + requests);
+        expect(nanoTime() - start < 1_000_000_000L * StreamingFetch.MAX_RETRIES, "no backoff");
+
+        reset("\"v1\"", true, 1);
+        afterDrop = () -> exists = false;
+        fetch("404 on reopen: fails without retries", uri, target, false);
+        expect(requests.size() == 2, "requests " + requests);
+
+        reset("\"v1\"", true, 1);
+        afterDrop = () -> {
+            for (int i = 0; i < 100; i++) {
+                statuses.add(503);
+            }
+        };
+        fetch("gives up after fetch.retries failed reopens", uri, target, false);
+        expect(requests.size() == 1 + StreamingFetch.MAX_RETRIES, "requests " + requests);
+
+        server.stop(0);
+        if (failures > 0) {
+            throw new AssertionError(failures + " failures");
+        }
+        err.println("-- OK");
+    }
+
+    static void reset(String etag, boolean ranges, int drops) {
+        fetch_test.etag = etag;
+        fetch_test.ranges = ranges;
+        fetch_test.drops = drops;
+        exists = true;
+        statuses.clear();
+        afterDrop = () -> {};
+        synchronized (requests) {
+            requests.clear();
+        }
+    }
+
+    static void fetch(String name, URI uri, Path target, boolean succeeds) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            StreamingFetch.fetchEntry(uri, ENTRY, target);
+            boolean same = Arrays.equals(las, Files.readAllBytes(target));
+            expect(succeeds && same, name + (same ? "" : ": LAS differs"));
+        } catch (IOException e) {
+            expect(!succeeds && !Files.exists(target), name + ": " + e);
+        }
+    }
+
+    static void expect(boolean condition, String name) {
+        if (condition) {
+            err.println("-- ok: " + name);
+        } else {
+            err.println("-- FAIL " + name);
+            failures++;
+        }
+    }
+
+    static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            synchronized (requests) {
+                requests.add(range == null ? "GET" : "Range " + range + (ifRange != null ? " If-Range " + ifRange : ""));
+            }
+            Integer status = statuses.poll();
+            if (status != null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            if (!exists) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            int from = 0;
+            if (range != null && ranges && (ifRange == null || ifRange.equals(etag))) {
+                from = Integer.parseInt(range.replaceAll("bytes=(\\d+)-", "$1"));
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (zip.length - 1) + "/" + zip.length);
+                exchange.sendResponseHeaders(206, zip.length - from);
+            } else {
+                exchange.sendResponseHeaders(200, zip.length);
+            }
+            OutputStream out = exchange.getResponseBody();
+            if (drops > 0) {
+                drops--;
+                // Half of the rest, then the connection goes down.
+                out.write(zip, from, (zip.length - from) / 2);
+                out.flush();
+                afterDrop.run();
+                throw new IOException("dropped");
+            }
+            out.write(zip, from, zip.length - from);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//SOURCES ../Raster.java
+//SOURCES ../GeoTiff.java
+//SOURCES ../FillNoData.java
+
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * FillNoData.java against gdal_fillnodata.py on a small DEM fixture
+ * (test/fillnodata/dem.tif, 121x89 px with holes of different sizes, at the edges
+ * and one wider than the search distance of the second run):
+ *
+ * <pre>
+ * gdal_fillnodata.py -md 500 -si 2 dem.tif filled_md500_si2.tif
+ * gdal_fillnodata.py -md 10 -si 0 dem.tif filled_md10_si0.tif
+ * </pre>
+ *
+ * Allowed difference: 0.001 m; the pixels left nodata must be the same.
+ *
+ * The gdal_fillnodata.py outputs live next to the fixture and are part of the
+ * check: a missing one fails. {@code --gdal} (re)creates them with the GDAL on the
+ * PATH; check them in after a GDAL upgrade. In addition, the fill is compared with
+ * a brute force version of the quadrant search (every column walked up and down,
+ * no early stop). {@code --fixture} writes the DEM again.
+ *
+ * <pre>
+ * jbang test/fillnodata_reference.java [--gdal] [--fixture]
+ * </pre>
+ */
+public class fillnodata_reference {
+
+    static final Path DIRECTORY = Paths.get(getProperty("fillnodata.reference", "test/fillnodata"));
+    static final float NODATA = -9999f;
+    static final double TOLERANCE = 0.001;
+
+    record Run(String file, int maxDistance, int smoothingIterations) {
+    }
+
+    static final List<Run> RUNS = List.of(new Run("filled_md500_si2.tif", 500, 2), new Run("filled_md10_si0.tif", 10, 0));
+
+    static int failures;
+
+    public static void main(String... args) throws Exception {
+        List<String> options = List.of(args);
+        Path demFile = DIRECTORY.resolve("dem.tif");
+        if (options.contains("--fixture") || !Files.exists(demFile)) {
+            Files.createDirectories(DIRECTORY);
+            GeoTiff.write(demFile, fixture(), GeoTiff.SampleType.FLOAT32);
+            err.println("-- wrote " + demFile);
+        }
+        Raster dem = GeoTiff.read(demFile);
+
+        for (Run run : RUNS) {
+            Path reference = DIRECTORY.resolve(run.file());
+            if (options.contains("--gdal")) {
+                gdalFillNoData(demFile, reference, run);
+            }
+            Raster ours = FillNoData.fill(dem, run.maxDistance(), run.smoothingIterations());
+            compare(run.file() + " vs. brute force", ours, bruteForce(dem, run.maxDistance(), run.smoothingIterations()));
+            if (Files.exists(reference)) {
+                compare(run.file() + " vs. gdal_fillnodata.py", ours, GeoTiff.read(reference));
+            } else {
+                fail(run.file() + " vs. gdal_fillnodata.py: " + reference + " missing, create it with --gdal");
+            }
+        }
+        if (failures > 0) {
+            throw new AssertionError(failures + " failures");
+        }
+        err.println("-- OK");
+    }
+
+    static void compare(String name, Raster ours, Raster reference) {
+        if (ours.width != reference.width || ours.height != reference.height) {
+            fail(name + ": " + ours.width + "x" + ours.height + " vs. " + reference.width + "x" + reference.height);
+            return;
+        }
+        double max = 0;
+        int maxX = -1;
+        int maxY = -1;
+        int noData = 0;
+        int unfilled = 0;
+        for (int y = 0; y < ours.height; y++) {
+            for (int x = 0; x < ours.width; x++) {
+                float a = ours.get(x, y);
+                float b = reference.get(x, y);
+                if (ours.isNoData(a) != reference.isNoData(b)) {
+                    noData++;
+                    continue;
+                }
+                if (ours.isNoData(a)) {
+                    unfilled++;
+                    continue;
+                }
+                double d = Math.abs(a - b);
+                if (d > max) {
+                    max = d;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+        String summary = name + ": max difference " + (float) max + (maxX >= 0 ? " at " + maxX + "," + maxY : "") + ", " + unfilled + " pixels left nodata";
+        if (noData > 0 || max > TOLERANCE) {
+            fail(summary + (noData > 0 ? ", nodata differs in " + noData + " pixels" : "") + " (tolerance " + TOLERANCE + ")");
+        } else {
+            err.println("-- ok: " + summary);
+        }
+    }
+
+    static void fail(String message) {
+        err.println("-- FAIL " + message);
+        failures++;
+    }
+
+    static void gdalFillNoData(Path dem, Path output, Run run) throws IOException, InterruptedException {
+        Files.deleteIfExists(output);
+        List<String> command = new ArrayList<>(List.of("gdal_fillnodata.py", "-q",
+                "-md", String.valueOf(run.maxDistance()), "-si", String.valueOf(run.smoothingIterations()),
+                dem.toString(), output.toString()));
+        err.println("-- " + String.join(" ", command));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("gdal_fillnodata.py failed: " + String.join(" ", command));
+        }
+    }
+
+    /**
+     * The fixture: a tilted surface with some noise and holes: small ones, one at
+     * the left edge, one in a corner, a long one along the bottom edge and a wide
+     * one (30 px) that -md 10 only fills at its rim.
+     */
+    static Raster fixture() {
+        int width = 121;
+        int height = 89;
+        Random random = new Random(1200);
+        float[] data = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double z = 450 + 0.2 * x + 0.1 * y + 3 * Math.sin(x / 9.0) * Math.sin(y / 7.0) + 0.1 * random.nextGaussian();
+                data[y * width + x] = (float) Math.round(z * 100) / 100;
+            }
+        }
+        int[][] holes = { { 10, 10, 3, 2 }, { 0, 40, 6, 5 }, { 0, 0, 4, 4 }, { 50, 84, 40, 5 }, { 60, 20, 30, 30 }, { 25, 60, 1, 8 }, { 100, 5, 8, 1 } };
+        for (int[] hole : holes) {
+            for (int y = hole[1]; y < hole[1] + hole[3]; y++) {
+                for (int x = hole[0]; x < hole[0] + hole[2]; x++) {
+                    data[y * width + x] = NODATA;
+                }
+            }
+        }
+        return new Raster(width, height, 2600000, 1200000, 0.5, NODATA, data);
+    }
+
+    /**
+     * The quadrant search without the precomputed rows and without narrowing the
+     * search once every quadrant has a winner, followed by the 3x3 smoothing of the
+     * filled pixels.
+     */
+    static Raster bruteForce(Raster dem, int maxDistance, int smoothingIterations) {
+        int w = dem.width;
+        int h = dem.height;
+        float[] out = new float[w * h];
+        boolean[] filled = new boolean[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (!dem.isNoData(dem.get(x, y))) {
+                    out[y * w + x] = dem.get(x, y);
+                    continue;
+                }
+                double[] distance = { maxDistance + 1, maxDistance + 1, maxDistance + 1, maxDistance + 1 };
+                float[] value = new float[4];
+                for (int step = 0; step <= maxDistance; step++) {
+                    int left = Math.max(0, x - step);
+                    int right = Math.min(w - 1, x + step);
+                    check(dem, distance, value, 0, left, x, y, -1);
+                    check(dem, distance, value, 1, left, x, y, 1);
+                    if (step > 0) {
+                        check(dem, distance, value, 2, right, x, y, -1);
+                        check(dem, distance, value, 3, right, x, y, 1);
+                    }
+                }
+                double weights = 0;
+                double sum = 0;
+                for (int q = 0; q < 4; q++) {
+                    if (distance[q] <= maxDistance) {
+                        weights += 1 / (distance[q] * distance[q]);
+                        sum += value[q] / (distance[q] * distance[q]);
+                    }
+                }
+                out[y * w + x] = weights > 0 ? (float) (sum / weights) : dem.noData;
+                filled[y * w + x] = weights > 0;
+            }
+        }
+        for (int iteration = 0; iteration < smoothingIterations; iteration++) {
+            float[] previous = out.clone();
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    if (!filled[y * w + x]) {
+                        continue;
+                    }
+                    double sum = 0;
+                    int n = 0;
+                    for (int ny = y - 1; ny <= y + 1; ny++) {
+                        for (int nx = x - 1; nx <= x + 1; nx++) {
+                            if (nx >= 0 && ny >= 0 && nx < w && ny < h && !dem.isNoData(previous[ny * w + nx])) {
+                                sum += previous[ny * w + nx];
+                                n++;
+                            }
+                        }
+                    }
+                    out[y * w + x] = (float) (sum / n);
+                }
+            }
+        }
+        return dem.withData(out, dem.noData);
+    }
+
+    // The nearest valid pixel in the column, walking up (direction -1) or down (1) from row y inclusive.
+    static void check(Raster dem, double[] distance, float[] value, int quadrant, int column, int x, int y, int direction) {
+        for (int row = y; row >= 0 && row < dem.height; row += direction) {
+            float v = dem.get(column, row);
+            if (!dem.isNoData(v)) {
+                double squared = (double) (column - x) * (column - x) + (double) (row - y) * (row - y);
+                if (squared < distance[quadrant] * distance[quadrant]) {
+                    distance[quadrant] = Math.sqrt(squared);
+                    value[quadrant] = v;
+                }
+                return;
+            }
+        }
+    }
+}
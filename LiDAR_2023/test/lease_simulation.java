@@ -0,0 +1,162 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//SOURCES ../Leases.java
+
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several worker JVMs on one host share chunks through Leases.java in a temporary
+ * lease directory, the way preprocess.java does with -Dleases. One worker is
+ * killed while it holds leases, another one is paused for longer than the lease
+ * timeout (Linux, {@code kill -STOP}). The others must take their chunks over once
+ * the leases are stale, and no chunk may be finished by two workers.
+ *
+ * Every worker logs {@code start <chunk>} and {@code end <chunk>} to its own file;
+ * {@code end} is only written while the worker still holds the lease.
+ *
+ * <pre>
+ * jbang test/lease_simulation.java [workers] [chunks]
+ * </pre>
+ */
+public class lease_simulation {
+
+    static final Duration HEARTBEAT = Duration.ofMillis(200);
+    static final Duration TIMEOUT = Duration.ofMillis(1500);
+    static final long WORK_MILLIS = 300;
+
+    public static void main(String... args) throws Exception {
+        if (args.length > 0 && args[0].equals("worker")) {
+            worker(Path.of(args[1]), args[2], Integer.parseInt(args[3]));
+            return;
+        }
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+        Path directory = Files.createTempDirectory("leases");
+        err.println("-- " + workers + " workers, " + chunks + " chunks in " + directory);
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", getProperty("java.class.path"), "lease_simulation",
+                    "worker", directory.toString(), "worker" + i, String.valueOf(chunks))
+                    .inheritIO().start());
+        }
+        // Killed while in the middle of its chunks, like a crashed host.
+        Thread.sleep(3 * WORK_MILLIS);
+        err.println("-- killing worker0");
+        processes.get(0).destroyForcibly().waitFor();
+        // Stalled longer than the timeout (GC pause, hung NFS): its leases are taken over meanwhile,
+        // and it must notice that before it finishes the chunks it was working on.
+        Thread.sleep(2 * WORK_MILLIS);
+        err.println("-- pausing worker1");
+        signal("STOP", processes.get(1));
+        Thread.sleep(3 * TIMEOUT.toMillis());
+        signal("CONT", processes.get(1));
+        for (int i = 1; i < workers; i++) {
+            if (!processes.get(i).waitFor(2, TimeUnit.MINUTES) || processes.get(i).exitValue() != 0) {
+                throw new AssertionError("worker" + i + " did not finish");
+            }
+        }
+
+        Map<String, List<String>> ended = new HashMap<>();
+        Map<String, List<String>> started = new HashMap<>();
+        for (int i = 0; i < workers; i++) {
+            Path log = directory.resolve("worker" + i + ".log");
+            if (!Files.exists(log)) {
+                continue;
+            }
+            for (String line : Files.readAllLines(log)) {
+                String[] parts = line.split(" ");
+                (parts[0].equals("start") ? started : ended).computeIfAbsent(parts[1], k -> new ArrayList<>()).add("worker" + i);
+            }
+        }
+        int failures = 0;
+        for (int c = 0; c < chunks; c++) {
+            String name = chunk(c);
+            List<String> by = ended.getOrDefault(name, List.of());
+            if (by.size() != 1 || !Files.exists(directory.resolve(name + ".done"))) {
+                err.println("-- FAIL " + name + ": finished by " + by + ", started by " + started.get(name));
+                failures++;
+            } else if (started.get(name).size() > 1) {
+                err.println("-- " + name + ": taken over, started by " + started.get(name) + ", finished by " + by);
+            }
+        }
+        try (var leftovers = Files.list(directory)) {
+            List<Path> leases = leftovers.filter(f -> f.getFileName().toString().contains(".lease") || f.getFileName().toString().contains(".stale")).toList();
+            if (!leases.isEmpty()) {
+                err.println("-- FAIL leases left behind: " + leases);
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            throw new AssertionError(failures + " failures");
+        }
+        err.println("-- OK: " + chunks + " chunks done exactly once, " + started.values().stream().filter(s -> s.size() > 1).count() + " taken over");
+    }
+
+    /**
+     * One worker: claims chunks like preprocess.java, works on them on two threads
+     * and checks that it still holds the lease before it finishes a chunk.
+     */
+    static void worker(Path directory, String id, int chunks) throws IOException, InterruptedException {
+        Path log = directory.resolve(id + ".log");
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            names.add(chunk(c));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        // Like the bounded queues of preprocess.java: the next chunk is claimed once a thread is free.
+        Semaphore free = new Semaphore(2);
+        try (Leases leases = Leases.open(directory, id, HEARTBEAT, TIMEOUT)) {
+            leases.claimAll(names, HEARTBEAT, name -> {
+                free.acquire();
+                pool.submit(() -> {
+                    try {
+                        work(leases, log, name);
+                    } finally {
+                        free.release();
+                    }
+                    return null;
+                });
+            });
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.HOURS);
+        }
+    }
+
+    static void work(Leases leases, Path log, String name) throws IOException, InterruptedException {
+        append(log, "start " + name);
+        Thread.sleep(WORK_MILLIS);
+        boolean held = leases.holds(name);
+        if (held) {
+            append(log, "end " + name);
+        }
+        leases.release(name, held);
+    }
+
+    static void signal(String signal, Process process) throws IOException, InterruptedException {
+        new ProcessBuilder("kill", "-" + signal, String.valueOf(process.pid())).inheritIO().start().waitFor();
+    }
+
+    static String chunk(int c) {
+        return String.format("chunk_%03d", c);
+    }
+
+    static synchronized void append(Path log, String line) throws IOException {
+        Files.writeString(log, line + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,201 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//SOURCES ../preprocess.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
+
+import static java.lang.System.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The source cache of preprocess.java (SourceCache.java with the conditional GET
+ * of StreamingFetch.java) against a local stand-in for data.geo.admin.ch that
+ * serves zipped LAS files with an ETag and answers If-None-Match with 304.
+ *
+ * Covers: miss, 304 hit, changed ETag, LRU eviction, an entry that is being
+ * revalidated while another tile is put, an entry evicted anyway before the 304
+ * (downloaded again), and the offline fallback. Runs in a
+ * temporary home directory.
+ *
+ * <pre>
+ * jbang test/source_cache_test.java
+ * </pre>
+ */
+public class source_cache_test {
+
+    // A resource of the stand-in: the zip and its version.
+    record Resource(byte[] las, byte[] zip, String etag) {
+    }
+
+    static final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    static final List<String> requests = new ArrayList<>();
+    // Runs when a conditional request arrives, before the 304 is sent.
+    static Runnable onConditional = () -> {};
+    static int failures;
+
+    public static void main(String... args) throws Exception {
+        Path home = Files.createTempDirectory("source_cache_test");
+        setProperty("user.home", home.toString());
+        Files.createDirectories(home.resolve("tmp/zip"));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", source_cache_test::handle);
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        String a = base + "swisssurface3d_2023_2600-1200_2056_5728.las.zip";
+        String b = base + "swisssurface3d_2023_2601-1200_2056_5728.las.zip";
+        String c = base + "swisssurface3d_2023_2602-1200_2056_5728.las.zip";
+        for (String url : List.of(a, b, c)) {
+            publish(url, "v1");
+        }
+        // Room for two of the three zips.
+        long zipSize = resources.get(path(a)).zip().length;
+        preprocess.sourceCache = new SourceCache(home.resolve("source_cache"), zipSize * 5 / 2, ".zip");
+
+        check("miss", a, List.of("GET " + path(a)));
+        check("304 hit", a, List.of("GET " + path(a) + " if-none-match"));
+        publish(a, "v2");
+        check("changed ETag", a, List.of("GET " + path(a) + " if-none-match"));
+        check("miss", b, List.of("GET " + path(b)));
+        check("miss, evicts the least recently used", c, List.of("GET " + path(c)));
+        assertTrue("a evicted", preprocess.sourceCache.get(new java.net.URI(a)) == null);
+        assertTrue("b cached", preprocess.sourceCache.get(new java.net.URI(b)) != null);
+
+        // Another tile is put while b is revalidated: the least recently used entry goes, which is
+        // c now (b counts as used from the lookup on).
+        onConditional = () -> putFiller(zipSize);
+        check("revalidated entry survives a concurrent put", b, List.of("GET " + path(b) + " if-none-match"));
+        // A put that needs the whole cache evicts b anyway: the 304 is of no use then.
+        onConditional = () -> putFiller(zipSize * 5 / 2);
+        check("evicted before the 304", b, List.of("GET " + path(b) + " if-none-match", "GET " + path(b)));
+        onConditional = () -> {};
+
+        server.stop(0);
+        check("offline, cached", b, List.of());
+        try {
+            check("offline, not cached", a, List.of());
+            fail("offline, not cached: no exception");
+        } catch (IOException e) {
+            err.println("-- ok: offline, not cached: " + e);
+        }
+        err.println("-- source cache: " + preprocess.sourceCache);
+        if (failures > 0) {
+            throw new AssertionError(failures + " failures");
+        }
+        err.println("-- OK");
+    }
+
+    /**
+     * Fetches a tile through preprocess and checks the LAS and the requests the
+     * stand-in saw.
+     */
+    static void check(String name, String url, List<String> expected) throws Exception {
+        preprocess.Tile tile = new preprocess.Tile(url);
+        Files.deleteIfExists(Paths.get(tile.lasFile));
+        synchronized (requests) {
+            requests.clear();
+        }
+        preprocess.fetchStreaming(tile);
+        boolean las = Arrays.equals(resources.get(path(url)).las(), Files.readAllBytes(Paths.get(tile.lasFile)));
+        List<String> seen;
+        synchronized (requests) {
+            seen = List.copyOf(requests);
+        }
+        if (las && seen.equals(expected)) {
+            err.println("-- ok: " + name + " " + seen);
+        } else {
+            fail(name + ": LAS " + (las ? "ok" : "differs") + ", requests " + seen + ", expected " + expected);
+        }
+        // File times of the cache entries must differ for the LRU order.
+        Thread.sleep(20);
+    }
+
+    static int fillers;
+
+    /**
+     * Puts an unrelated entry into the cache, as a tile fetched at the same time would.
+     */
+    static void putFiller(long size) {
+        try {
+            java.net.URI uri = new java.net.URI("http://127.0.0.1/filler" + fillers++ + ".zip");
+            Path part = preprocess.sourceCache.part(uri);
+            Files.write(part, new byte[(int) size]);
+            preprocess.sourceCache.put(uri, part, null, null);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void publish(String url, String version) throws IOException {
+        String path = path(url);
+        String entry = path.replaceAll(".*_(\\d{4})-(\\d{4})_.*", "$1_$2.las");
+        byte[] las = new byte[1 << 20];
+        new Random((path + version).hashCode()).nextBytes(las);
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write(las);
+            out.closeEntry();
+        }
+        resources.put(path, new Resource(las, zip.toByteArray(), "\"" + version + "\""));
+    }
+
+    static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            Resource resource = resources.get(path);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            synchronized (requests) {
+                requests.add("GET " + path + (ifNoneMatch != null ? " if-none-match" : ""));
+            }
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", resource.etag());
+            if (resource.etag().equals(ifNoneMatch)) {
+                onConditional.run();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, resource.zip().length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(resource.zip());
+            }
+        }
+    }
+
+    static String path(String url) {
+        return url.substring(url.indexOf('/', "http://".length()));
+    }
+
+    static void assertTrue(String name, boolean condition) {
+        if (condition) {
+            err.println("-- ok: " + name);
+        } else {
+            fail(name);
+        }
+    }
+
+    static void fail(String message) {
+        err.println("-- FAIL " + message);
+        failures++;
+    }
+}
@@ -0,0 +1,319 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//SOURCES ../Raster.java
+//SOURCES ../GeoTiff.java
+//SOURCES ../Terrain.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
+
+import static java.lang.System.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Terrain.java against gdaldem on a small DEM fixture (test/terrain/dem.tif,
+ * 67x53 px at 0.5 m with hills, a cliff, a flat plateau and nodata holes inside
+ * and at the edges), for the renderings the pipeline uses:
+ *
+ * <pre>
+ * gdaldem hillshade dem.tif hillshade_alt55_multidirectional.tif -compute_edges -alt 55 -multidirectional
+ * gdaldem hillshade dem.tif hillshade_alt50_multidirectional.tif -compute_edges -alt 50 -multidirectional
+ * gdaldem hillshade dem.tif hillshade.tif -compute_edges
+ * gdaldem slope dem.tif slope.tif -compute_edges
+ * </pre>
+ *
+ * Allowed difference: 1 gray level for the hillshades (gdaldem approximates the
+ * inverse square root and rounds to bytes, Terrain.java computes in float), 0.001
+ * degrees for the slope. The nodata pixels must be the same.
+ *
+ * The gdaldem outputs live next to the fixture and are part of the check: a
+ * missing one fails. {@code --gdaldem} (re)creates them with the gdaldem on the
+ * PATH; check them in after a GDAL upgrade. In addition, Terrain.java is compared
+ * with a scalar port of gdaldem_lib.cpp (edge extrapolation, nodata handling and
+ * the formulas in double precision, exact inverse square root) with the same
+ * tolerances, which points at the kernel when gdaldem disagrees.
+ * {@code --fixture} writes the DEM again.
+ *
+ * <pre>
+ * jbang test/terrain_reference.java [--gdaldem] [--fixture]
+ * </pre>
+ */
+public class terrain_reference {
+
+    static final Path DIRECTORY = Paths.get(getProperty("terrain.reference", "test/terrain"));
+    static final float NODATA = -9999f;
+    static final double HILLSHADE_TOLERANCE = 1;
+    static final double SLOPE_TOLERANCE = 0.001;
+
+    record Product(String file, Terrain.Hillshade hillshade, List<String> gdaldem) {
+    }
+
+    static final List<Product> PRODUCTS = List.of(
+            new Product("hillshade_alt55_multidirectional.tif", Terrain.Hillshade.multidirectional(55),
+                    List.of("hillshade", "-compute_edges", "-alt", "55", "-multidirectional")),
+            new Product("hillshade_alt50_multidirectional.tif", Terrain.Hillshade.multidirectional(50),
+                    List.of("hillshade", "-compute_edges", "-alt", "50", "-multidirectional")),
+            new Product("hillshade.tif", Terrain.Hillshade.standard(),
+                    List.of("hillshade", "-compute_edges")),
+            new Product("slope.tif", null,
+                    List.of("slope", "-compute_edges")));
+
+    static int failures;
+
+    public static void main(String... args) throws Exception {
+        List<String> options = List.of(args);
+        Path demFile = DIRECTORY.resolve("dem.tif");
+        if (options.contains("--fixture") || !Files.exists(demFile)) {
+            Files.createDirectories(DIRECTORY);
+            GeoTiff.write(demFile, fixture(), GeoTiff.SampleType.FLOAT32);
+            err.println("-- wrote " + demFile);
+        }
+        Raster dem = GeoTiff.read(demFile);
+
+        for (Product product : PRODUCTS) {
+            Path reference = DIRECTORY.resolve(product.file());
+            if (options.contains("--gdaldem")) {
+                gdaldem(demFile, reference, product.gdaldem());
+            }
+            Raster ours = product.hillshade() == null ? Terrain.slope(dem, 1) : Terrain.hillshade(dem, product.hillshade());
+            if (product.hillshade() != null) {
+                // As written by GeoTiff.java into the byte GeoTIFF.
+                ours = round(ours);
+            }
+            double tolerance = product.hillshade() == null ? SLOPE_TOLERANCE : HILLSHADE_TOLERANCE;
+
+            compare(product.file() + " vs. port of gdaldem_lib.cpp", ours, port(dem, product), tolerance);
+            if (Files.exists(reference)) {
+                compare(product.file() + " vs. gdaldem", ours, GeoTiff.read(reference), tolerance);
+            } else {
+                fail(product.file() + " vs. gdaldem: " + reference + " missing, create it with --gdaldem");
+            }
+        }
+        if (failures > 0) {
+            throw new AssertionError(failures + " failures");
+        }
+        err.println("-- OK");
+    }
+
+    static void compare(String name, Raster ours, Raster reference, double tolerance) {
+        if (ours.width != reference.width || ours.height != reference.height) {
+            fail(name + ": " + ours.width + "x" + ours.height + " vs. " + reference.width + "x" + reference.height);
+            return;
+        }
+        double max = 0;
+        int maxX = -1;
+        int maxY = -1;
+        int differing = 0;
+        int noData = 0;
+        for (int y = 0; y < ours.height; y++) {
+            for (int x = 0; x < ours.width; x++) {
+                float a = ours.get(x, y);
+                float b = reference.get(x, y);
+                if (ours.isNoData(a) != reference.isNoData(b)) {
+                    noData++;
+                    continue;
+                }
+                if (ours.isNoData(a)) {
+                    continue;
+                }
+                double d = Math.abs(a - b);
+                if (d > 0) {
+                    differing++;
+                }
+                if (d > max) {
+                    max = d;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+        String summary = name + ": max difference " + (float) max + (maxX >= 0 ? " at " + maxX + "," + maxY : "")
+                + ", " + differing + " of " + ours.width * ours.height + " pixels differ";
+        if (noData > 0 || max > tolerance) {
+            fail(summary + (noData > 0 ? ", nodata differs in " + noData + " pixels" : "") + " (tolerance " + tolerance + ")");
+        } else {
+            err.println("-- ok: " + summary);
+        }
+    }
+
+    static void fail(String message) {
+        err.println("-- FAIL " + message);
+        failures++;
+    }
+
+    static Raster round(Raster raster) {
+        float[] out = new float[raster.data.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = Math.round(Math.max(0, Math.min(255, raster.data[i])));
+        }
+        return raster.withData(out, raster.noData);
+    }
+
+    static void gdaldem(Path dem, Path output, List<String> arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("gdaldem");
+        command.add(arguments.get(0));
+        command.add(dem.toString());
+        command.add(output.toString());
+        command.addAll(arguments.subList(1, arguments.size()));
+        command.addAll(List.of("-co", "COMPRESS=DEFLATE", "-co", "PREDICTOR=2", "-q"));
+        err.println("-- " + String.join(" ", command));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("gdaldem failed: " + String.join(" ", command));
+        }
+    }
+
+    /**
+     * The fixture: tilted hills with some noise, a 12 m cliff, a flat plateau (flat
+     * windows take a separate path in -multidirectional) and nodata holes inside,
+     * at the edges and in a corner. Odd sizes, so the vector loops have tails.
+     */
+    static Raster fixture() {
+        int width = 67;
+        int height = 53;
+        Random random = new Random(2056);
+        float[] data = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double z = 480 + 0.35 * x - 0.2 * y + 6 * Math.sin(x / 6.0) * Math.cos(y / 4.5) + 0.15 * random.nextGaussian();
+                if (x >= 40 && x < 50 && y >= 8 && y < 20) {
+                    z = 495;
+                } else if (x + y / 3 > 55) {
+                    z += 12;
+                }
+                data[y * width + x] = (float) Math.round(z * 100) / 100;
+            }
+        }
+        int[][] holes = { { 20, 25, 6, 4 }, { 30, 0, 5, 2 }, { 0, 35, 2, 3 }, { 66, 52, 1, 1 }, { 10, 10, 1, 1 }, { 60, 30, 7, 1 } };
+        for (int[] hole : holes) {
+            for (int y = hole[1]; y < hole[1] + hole[3]; y++) {
+                for (int x = hole[0]; x < hole[0] + hole[2]; x++) {
+                    data[y * width + x] = NODATA;
+                }
+            }
+        }
+        return new Raster(width, height, 2600000, 1200000, 0.5, NODATA, data);
+    }
+
+    // ---- Scalar port of gdaldem_lib.cpp: GDALGeneric3x3Processing with -compute_edges,
+    // GDALHillshadeAlg, GDALHillshadeMultiDirectionalAlg and GDALSlopeHornAlg.
+
+    static Raster port(Raster dem, Product product) {
+        int w = dem.width;
+        int h = dem.height;
+        float dstNoData = product.hillshade() == null ? -9999f : 0f;
+        float[] out = new float[w * h];
+        float[] win = new float[9];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                int jmin = j == 0 ? j : j - 1;
+                int jmax = j == w - 1 ? j : j + 1;
+                if (i == 0) {
+                    win[0] = interpol(dem, dem.get(jmin, 0), dem.get(jmin, 1));
+                    win[1] = interpol(dem, dem.get(j, 0), dem.get(j, 1));
+                    win[2] = interpol(dem, dem.get(jmax, 0), dem.get(jmax, 1));
+                    fill(dem, win, 3, 0, jmin, j, jmax);
+                    fill(dem, win, 6, 1, jmin, j, jmax);
+                } else if (i == h - 1) {
+                    fill(dem, win, 0, i - 1, jmin, j, jmax);
+                    fill(dem, win, 3, i, jmin, j, jmax);
+                    win[6] = interpol(dem, dem.get(jmin, i), dem.get(jmin, i - 1));
+                    win[7] = interpol(dem, dem.get(j, i), dem.get(j, i - 1));
+                    win[8] = interpol(dem, dem.get(jmax, i), dem.get(jmax, i - 1));
+                } else {
+                    for (int r = 0; r < 3; r++) {
+                        int row = i - 1 + r;
+                        win[r * 3] = j == 0 ? interpol(dem, dem.get(0, row), dem.get(1, row)) : dem.get(j - 1, row);
+                        win[r * 3 + 1] = dem.get(j, row);
+                        win[r * 3 + 2] = j == w - 1 ? interpol(dem, dem.get(j, row), dem.get(j - 1, row)) : dem.get(j + 1, row);
+                    }
+                }
+                out[i * w + j] = computeVal(dem, win, dstNoData, product, dem.resolution);
+            }
+        }
+        return dem.withData(out, dstNoData);
+    }
+
+    static void fill(Raster dem, float[] win, int offset, int row, int jmin, int j, int jmax) {
+        win[offset] = dem.get(jmin, row);
+        win[offset + 1] = dem.get(j, row);
+        win[offset + 2] = dem.get(jmax, row);
+    }
+
+    static float interpol(Raster dem, float a, float b) {
+        return dem.isNoData(a) || dem.isNoData(b) ? dem.noData : 2 * a - b;
+    }
+
+    static float computeVal(Raster dem, float[] win, float dstNoData, Product product, double resolution) {
+        if (dem.isNoData(win[4])) {
+            return dstNoData;
+        }
+        for (int k = 0; k < 9; k++) {
+            if (dem.isNoData(win[k])) {
+                win[k] = win[4];
+            }
+        }
+        Terrain.Hillshade params = product.hillshade();
+        if (params == null) {
+            return slopeHorn(win, resolution, resolution);
+        }
+        return params.multidirectional() ? hillshadeMultiDirectional(win, params, resolution) : hillshade(win, params, resolution);
+    }
+
+    // The geotransform of a north-up raster: ewres > 0, nsres < 0.
+    static float hillshade(float[] afWin, Terrain.Hillshade params, double resolution) {
+        double invEwres = 1.0 / resolution;
+        double invNsres = 1.0 / -resolution;
+        double zScaled = params.zFactor() / 8.0;
+        double sinAlt = Math.sin(Math.toRadians(params.altitude()));
+        double cosAltMulZ = Math.cos(Math.toRadians(params.altitude())) * zScaled;
+        double az = Math.toRadians(params.azimuth());
+        double x = ((afWin[0] + afWin[3] + afWin[3] + afWin[6]) - (afWin[2] + afWin[5] + afWin[5] + afWin[8])) * invEwres;
+        double y = ((afWin[6] + afWin[7] + afWin[7] + afWin[8]) - (afWin[0] + afWin[1] + afWin[1] + afWin[2])) * invNsres;
+        double xxPlusYy = x * x + y * y;
+        double cang = (sinAlt - (y * Math.cos(az) * cosAltMulZ - x * Math.sin(az) * cosAltMulZ))
+                / Math.sqrt(1 + zScaled * zScaled * xxPlusYy);
+        return (float) Math.round(cang <= 0 ? 1 : 1 + 254 * cang);
+    }
+
+    static float hillshadeMultiDirectional(float[] afWin, Terrain.Hillshade params, double resolution) {
+        double invEwres = 1.0 / resolution;
+        double invNsres = 1.0 / -resolution;
+        double zScaled = params.zFactor() / 8.0;
+        double sinAltMul127 = 127 * Math.sin(Math.toRadians(params.altitude()));
+        double cosAltMulZMul127 = 127 * Math.cos(Math.toRadians(params.altitude())) * zScaled / Math.sqrt(2);
+        double cosAltMulZMul127MulSqrt2 = cosAltMulZMul127 * Math.sqrt(2);
+        double x = ((afWin[0] + afWin[3] + afWin[3] + afWin[6]) - (afWin[2] + afWin[5] + afWin[5] + afWin[8])) * invEwres;
+        double y = ((afWin[6] + afWin[7] + afWin[7] + afWin[8]) - (afWin[0] + afWin[1] + afWin[1] + afWin[2])) * invNsres;
+        double xx = x * x;
+        double yy = y * y;
+        double xxPlusYy = xx + yy;
+        if (xxPlusYy == 0) {
+            return (float) Math.round(1 + 2 * sinAltMul127);
+        }
+        double val225 = Math.max(0, sinAltMul127 + (y - x) * cosAltMulZMul127);
+        double val270 = Math.max(0, sinAltMul127 - x * cosAltMulZMul127MulSqrt2);
+        double val315 = Math.max(0, sinAltMul127 - (x + y) * cosAltMulZMul127);
+        double val360 = Math.max(0, sinAltMul127 - y * cosAltMulZMul127MulSqrt2);
+        double weight225 = 0.5 * xxPlusYy - x * y;
+        double weight270 = xx;
+        double weight315 = xxPlusYy - weight225;
+        double weight360 = yy;
+        double cangMul127 = (weight225 * val225 + weight270 * val270 + weight315 * val315 + weight360 * val360) / xxPlusYy
+                / Math.sqrt(1 + zScaled * zScaled * xxPlusYy);
+        return (float) Math.round(1 + cangMul127);
+    }
+
+    static float slopeHorn(float[] afWin, double ewres, double nsres) {
+        double dx = ((afWin[0] + afWin[3] + afWin[3] + afWin[6]) - (afWin[2] + afWin[5] + afWin[5] + afWin[8])) / ewres;
+        double dy = ((afWin[6] + afWin[7] + afWin[7] + afWin[8]) - (afWin[0] + afWin[1] + afWin[1] + afWin[2])) / nsres;
+        double key = dx * dx + dy * dy;
+        return (float) Math.toDegrees(Math.atan(Math.sqrt(key) / 8));
+    }
+}
@@ -0,0 +1,343 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//SOURCES Raster.java
+//SOURCES GeoTiff.java
+//SOURCES Terrain.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector
+//JAVA_OPTIONS --add-modules jdk.incubator.vector
+
+import static java.lang.System.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Hillshade and slope map tiles rendered on request from the filled DSM/DTM tiles
+ * of preprocess.java, instead of precomputing a relief for every tile.
+ *
+ * {@code GET /<dsm|dtm>/<hillshade|slope>/<z>/<x>/<y>.png} with optional
+ * {@code altitude}, {@code azimuth}, {@code zFactor} and {@code multidirectional}
+ * (gdaldem defaults). The tiles are 256 px in LV95 with the origin of the swisstopo
+ * tile matrix (2420000, 1350000) and {@code 0.25 * 2^(14 - z)} m per pixel, so z = 14
+ * is the full resolution of the 1 km tiles. Zoomed out, the blocks of the mosaic
+ * pyramid ({@code ~/tmp/mosaic/<product>/<level>}) are read instead.
+ *
+ * Only the GeoTIFF blocks under a map tile and a one pixel halo are decoded, the
+ * kernels of Terrain.java run in-process, one virtual thread per request. Rendered
+ * PNGs are kept in an LRU cache bounded by bytes. The modification time and size
+ * of the source blocks are part of the cache key and of the ETag, so a tile
+ * rendered before a rerun of preprocess.java is neither served from the cache nor
+ * confirmed to a client revalidating with {@code If-None-Match}.
+ */
+public class tileserver {
+
+    static final int PORT = Integer.getInteger("port", 8080);
+    static final String DSM_DIRECTORY = System.getProperty("user.home")+"/tmp/dsm";
+    static final String DTM_DIRECTORY = System.getProperty("user.home")+"/tmp/dtm";
+    static final String MOSAIC_DIRECTORY = System.getProperty("user.home")+"/tmp/mosaic";
+    static final int MOSAIC_LEVELS = Integer.getInteger("mosaic.levels", 9);
+    static final long CACHE_BYTES = Long.getLong("cache.mb", 512) << 20;
+
+    static final double RESOLUTION = 0.25;
+    static final int MAX_ZOOM = 14;
+    static final int MAP_TILE = 256;
+    static final double ORIGIN_E = 2420000;
+    static final double ORIGIN_N = 1350000;
+    static final float NODATA = -9999f;
+    // A map tile may not need more source pixels than this (zoomed out beyond the mosaic levels).
+    static final long MAX_SOURCE_PIXELS = 4096L * 4096;
+
+    static final Pattern TILE = Pattern.compile("/(dsm|dtm)/(hillshade|slope)/(\\d+)/(\\d+)/(\\d+)\\.png");
+
+    static final RenderCache cache = new RenderCache(CACHE_BYTES);
+
+    public static void main(String... args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/", tileserver::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        err.println("-- tile server on http://localhost:" + PORT + "/dsm/hillshade/{z}/{x}/{y}.png, cache " + (CACHE_BYTES >> 20) + " MB");
+    }
+
+    static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Matcher m = TILE.matcher(exchange.getRequestURI().getPath());
+            if (!exchange.getRequestMethod().equals("GET") || !m.matches()) {
+                send(exchange, 404, "text/plain", "GET /<dsm|dtm>/<hillshade|slope>/<z>/<x>/<y>.png\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            long start = nanoTime();
+            byte[] png;
+            String key;
+            String etag;
+            try {
+                Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+                String source = m.group(1);
+                String style = m.group(2);
+                int z = Integer.parseInt(m.group(3));
+                int x = Integer.parseInt(m.group(4));
+                int y = Integer.parseInt(m.group(5));
+                if (z > MAX_ZOOM) {
+                    throw new IllegalArgumentException("z > " + MAX_ZOOM);
+                }
+                Terrain.Hillshade params = new Terrain.Hillshade(
+                        Double.parseDouble(query.getOrDefault("altitude", "45")),
+                        Double.parseDouble(query.getOrDefault("azimuth", "315")),
+                        Double.parseDouble(query.getOrDefault("zFactor", "1")),
+                        Boolean.parseBoolean(query.getOrDefault("multidirectional", "false")));
+                Window window = window(source, z, x, y);
+                // Slope only depends on the z factor.
+                key = source + "/" + style + "/" + z + "/" + x + "/" + y + "/" + (style.equals("slope") ? "zFactor=" + params.zFactor() : params)
+                        + "/" + version(window.blocks());
+                etag = "\"" + Integer.toHexString(key.hashCode()) + "\"";
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.getResponseHeaders().set("Cache-Control", "public, no-cache");
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                png = cache.get(key);
+                if (png == null) {
+                    png = render(window, style, params);
+                    cache.put(key, png);
+                }
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                // A broken or unreadable source block: the client gets an answer, not a dropped connection.
+                err.println("-- " + exchange.getRequestURI() + ": " + e);
+                send(exchange, 500, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            // Clients revalidate every time; the ETag changes with the source blocks.
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "public, no-cache");
+            send(exchange, 200, "image/png", png);
+            err.println(String.format(Locale.ROOT, "-- %s %.1f ms (cache: %s)", key, (nanoTime() - start) / 1e6, cache));
+        } catch (IOException | RuntimeException e) {
+            err.println("-- " + exchange.getRequestURI() + ": " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * A source block overlapping a window, and where the window starts in it.
+     */
+    record Block(Path file, int offsetX, int offsetY) {
+    }
+
+    /**
+     * The source window of a map tile at the pyramid level closest to the map
+     * resolution, plus one pixel on every side for the 3x3 kernel, with the blocks
+     * it overlaps.
+     */
+    record Window(int factor, double minE, double maxN, int size, double resolution, List<Block> blocks) {
+    }
+
+    static Window window(String source, int z, int x, int y) {
+        double resolution = RESOLUTION * Math.pow(2, MAX_ZOOM - z);
+        int level = Math.min(MAX_ZOOM - z, MOSAIC_LEVELS);
+        int factor = 1 << (MAX_ZOOM - z - level);
+        double sourceResolution = RESOLUTION * (1L << level);
+        int size = (MAP_TILE + 2) * factor;
+        if ((long) size * size > MAX_SOURCE_PIXELS) {
+            throw new IllegalArgumentException("z " + z + " needs more than " + MOSAIC_LEVELS + " mosaic levels");
+        }
+        double minE = ORIGIN_E + x * MAP_TILE * resolution - resolution;
+        double maxN = ORIGIN_N - y * MAP_TILE * resolution + resolution;
+        return new Window(factor, minE, maxN, size, sourceResolution, blocks(source, level, minE, maxN, size, sourceResolution));
+    }
+
+    /**
+     * The blocks of the DEM at a pyramid level that a square window overlaps,
+     * whether they exist or not. Level 0 are the 1 km tiles, level L the mosaic
+     * blocks of 2^L km.
+     */
+    static List<Block> blocks(String source, int level, double minE, double maxN, int size, double resolution) {
+        List<Block> blocks = new ArrayList<>();
+        double blockMeters = 1000.0 * (1L << level);
+        int e0 = (int) Math.floor(minE / blockMeters);
+        int e1 = (int) Math.floor((minE + size * resolution - 1e-6) / blockMeters);
+        int n0 = (int) Math.floor((maxN - size * resolution) / blockMeters);
+        int n1 = (int) Math.floor((maxN - 1e-6) / blockMeters);
+        for (int e = e0; e <= e1; e++) {
+            for (int n = n0; n <= n1; n++) {
+                Path file = level == 0
+                        ? Paths.get(source.equals("dsm") ? DSM_DIRECTORY : DTM_DIRECTORY, "filled_no_data_" + e + "_" + n + ".tif")
+                        : Paths.get(MOSAIC_DIRECTORY, source, String.valueOf(level), e + "_" + n + ".tif");
+                int offsetX = (int) Math.round((minE - e * blockMeters) / resolution);
+                int offsetY = (int) Math.round(((n + 1) * blockMeters - maxN) / resolution);
+                blocks.add(new Block(file, offsetX, offsetY));
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Modification time and size of the blocks, "-" for a missing one: changes when
+     * preprocess.java or the mosaic rewrites a block, or a block appears.
+     */
+    static String version(List<Block> blocks) {
+        StringBuilder sb = new StringBuilder();
+        for (Block block : blocks) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(block.file(), BasicFileAttributes.class);
+                sb.append(attributes.lastModifiedTime().toMillis()).append(':').append(attributes.size());
+            } catch (IOException e) {
+                sb.append('-');
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Renders one map tile from its source window.
+     */
+    static byte[] render(Window window, String style, Terrain.Hillshade params) throws IOException {
+        Raster dem = read(window);
+        for (int f = window.factor(); f > 1; f /= 2) {
+            dem = GeoTiff.downsample(dem);
+        }
+        Raster shaded = style.equals("slope") ? Terrain.slope(dem, params.zFactor()) : Terrain.hillshade(dem, params);
+        return png(shaded, style.equals("slope"));
+    }
+
+    /**
+     * The window of the DEM, assembled from the blocks that exist.
+     */
+    static Raster read(Window window) throws IOException {
+        int size = window.size();
+        Raster raster = new Raster(size, size, window.minE(), window.maxN(), window.resolution(), NODATA);
+        for (Block block : window.blocks()) {
+            if (!Files.exists(block.file())) {
+                continue;
+            }
+            Raster part = GeoTiff.readWindow(block.file(), block.offsetX(), block.offsetY(), size, size);
+            for (int i = 0; i < part.data.length; i++) {
+                float v = part.data[i];
+                if (!part.isNoData(v)) {
+                    raster.data[i] = v;
+                }
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * The map tile without the halo as PNG, nodata transparent. Slope is shown from
+     * white (flat) to black (90°).
+     */
+    static byte[] png(Raster shaded, boolean slope) throws IOException {
+        BufferedImage image = new BufferedImage(MAP_TILE, MAP_TILE, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < MAP_TILE; y++) {
+            for (int x = 0; x < MAP_TILE; x++) {
+                float v = shaded.get(x + 1, y + 1);
+                if (shaded.isNoData(v)) {
+                    continue;
+                }
+                int gray = slope ? 255 - Math.round(Math.min(90, v) / 90 * 255) : Math.round(v);
+                image.setRGB(x, y, 0xff000000 | gray << 16 | gray << 8 | gray);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    static Map<String, String> query(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int i = pair.indexOf('=');
+            if (i > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, i), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(i + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Rendered tiles, least recently used evicted beyond the byte limit.
+     */
+    static class RenderCache {
+        private final long capacity;
+        private final LinkedHashMap<String, byte[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+
+        RenderCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String key) {
+            byte[] png = tiles.get(key);
+            if (png != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return png;
+        }
+
+        synchronized void put(String key, byte[] png) {
+            byte[] old = tiles.put(key, png);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += png.length;
+            Iterator<Map.Entry<String, byte[]>> it = tiles.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                Map.Entry<String, byte[]> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                bytes -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return tiles.size() + " tiles, " + (bytes >> 20) + " MB, " + hits + " hits, " + misses + " misses";
+        }
+    }
+}